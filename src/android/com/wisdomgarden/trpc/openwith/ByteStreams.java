@@ -4,6 +4,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Convert an InputStream to a byte array.
@@ -49,6 +51,37 @@ public final class ByteStreams {
         return new byte[8192];
     }
 
+    /**
+     * Size of the direct buffers used by channel copies.
+     */
+    static final int DIRECT_BUFFER_SIZE = 128 * 1024;
+
+    private static final int MAX_POOLED_DIRECT_BUFFERS = 4;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> DIRECT_BUFFERS = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Takes a direct buffer from the pool, allocating one if the pool is empty.
+     * Give it back with releaseDirectBuffer.
+     */
+    static ByteBuffer acquireDirectBuffer() {
+        final ByteBuffer buffer = DIRECT_BUFFERS.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a buffer obtained from acquireDirectBuffer to the pool.
+     */
+    static void releaseDirectBuffer(final ByteBuffer buffer) {
+        buffer.clear();
+        if (DIRECT_BUFFERS.size() < MAX_POOLED_DIRECT_BUFFERS) {
+            DIRECT_BUFFERS.offer(buffer);
+        }
+    }
+
     private ByteStreams() {
     }
 
@@ -0,0 +1,87 @@
+package com.wisdomgarden.trpc.openwith;
+
+import org.apache.cordova.CallbackContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Streams the content of an item to javascript, one binary message per chunk.
+ * <p>
+ * The next chunk is only read once javascript acknowledged the previous one,
+ * so at most one chunk is held in memory whatever the size of the content.
+ * The end of the content is signaled by an empty chunk, which also releases
+ * the callback.
+ */
+class ChunkReader implements Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int MIN_CHUNK_SIZE = 1024;
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private final CallbackContext context;
+    private boolean closed = false;
+
+    public ChunkReader(final InputStream in, final int chunkSize, final CallbackContext context) {
+        this.in = in;
+        this.buffer = new byte[Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize))];
+        this.context = context;
+    }
+
+    /**
+     * Read and send the next chunk, or the end marker.
+     *
+     * @return false once the end marker was sent
+     */
+    public synchronized boolean sendNext() throws IOException {
+        if (closed) {
+            return false;
+        }
+        int filled = 0;
+        while (filled < buffer.length) {
+            final int read = in.read(buffer, filled, buffer.length - filled);
+            if (read == -1) {
+                break;
+            }
+            filled += read;
+        }
+
+        if (filled == 0) {
+            close();
+            PluginResultSender.chunk(context, new byte[0], false);
+            return false;
+        }
+        // The message is encoded when built, so the buffer can be reused for the next chunk
+        PluginResultSender.chunk(context, filled == buffer.length ? buffer : Arrays.copyOf(buffer, filled), true);
+        return true;
+    }
+
+    /**
+     * Stop streaming, with an error sent to javascript.
+     */
+    public synchronized void abort(final String message) {
+        if (closed) {
+            return;
+        }
+        close();
+        context.error(message);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            in.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
+// vim: ts=4:sw=4:et
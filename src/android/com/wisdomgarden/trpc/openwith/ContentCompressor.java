@@ -0,0 +1,325 @@
+package com.wisdomgarden.trpc.openwith;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate compression of the copies kept in the share cache.
+ * <p>
+ * Only text-like types are considered (plain text, CSV, JSON, XML, ...), and
+ * the start of the file is deflated first as a sample: content which does not
+ * shrink enough, like base64 of a photo sent as text, is left as it is.
+ * Content of an unknown or generic type may be a large video, it is never
+ * compressed so its copy keeps transferTo and can be resumed. Compressed copies are zlib streams
+ * stored next to where the plain file would be, with the SUFFIX extension.
+ * <p>
+ * Content written by the plugin goes through an Output, deflated on its way
+ * to the file. deflate is only left for entries stored plain before.
+ */
+class ContentCompressor {
+
+    public static final String SUFFIX = ".deflate";
+
+    /**
+     * Bytes deflated to decide whether a file is worth compressing
+     */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Largest compressed to original size ratio of the sample for a file to be compressed
+     */
+    private static final double MAX_SAMPLE_RATIO = 0.8;
+
+    /**
+     * Files smaller than this are not worth compressing
+     */
+    private static final long MIN_SIZE = 4096;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Deflater level, 1 (fastest) to 9 (smallest), 0 disables compression.
+     */
+    private static int LEVEL = 0;
+
+    public static synchronized void setLevel(final int level) {
+        LEVEL = Math.max(0, Math.min(Deflater.BEST_COMPRESSION, level));
+    }
+
+    public static synchronized int getLevel() {
+        return LEVEL;
+    }
+
+    /**
+     * Text-like types, which usually compress well.
+     */
+    public static boolean accepts(final String type) {
+        if (type == null) {
+            return false;
+        }
+        final String lower = type.toLowerCase(Locale.US);
+        return lower.startsWith("text/")
+                || lower.endsWith("+json")
+                || lower.endsWith("+xml")
+                || lower.equals("application/json")
+                || lower.equals("application/x-ndjson")
+                || lower.equals("application/xml")
+                || lower.equals("application/javascript")
+                || lower.equals("application/x-javascript")
+                || lower.equals("application/csv")
+                || lower.equals("application/sql")
+                || lower.equals("application/rtf")
+                || lower.equals("application/x-yaml")
+                || lower.equals("application/yaml")
+                || lower.equals("image/svg+xml");
+    }
+
+    /**
+     * The path of the plain file a compressed file stands for.
+     */
+    public static String decompressedPath(final String compressedPath) {
+        return compressedPath.endsWith(SUFFIX)
+                ? compressedPath.substring(0, compressedPath.length() - SUFFIX.length())
+                : compressedPath;
+    }
+
+    /**
+     * Deflate a sample of the start of file and tell whether it shrinks enough.
+     */
+    public static boolean isCompressible(final File file, final int level) throws IOException {
+        if (file.length() < MIN_SIZE) {
+            return false;
+        }
+        final byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, file.length())];
+        int length = 0;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int read;
+            while (length < sample.length && (read = in.read(sample, length, sample.length - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            closeQuietly(in);
+        }
+        return isCompressible(sample, length, level);
+    }
+
+    /**
+     * Deflate the first length bytes of sample and tell whether they shrink enough.
+     */
+    private static boolean isCompressible(final byte[] sample, final int length, final int level) {
+        final Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            final byte[] output = new byte[BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            return compressed <= length * MAX_SAMPLE_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write the compressed form of source into dest, replacing it.
+     */
+    public static void deflate(final File source, final File dest, final int level) throws IOException {
+        final Deflater deflater = new Deflater(level);
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new DeflaterOutputStream(new FileOutputStream(dest, false), deflater, BUFFER_SIZE);
+            copy(in, out);
+            out.close();
+            out = null;
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write the plain content of a compressed file into dest, replacing it.
+     */
+    public static void inflate(final File source, final File dest) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = open(source);
+            out = new FileOutputStream(dest, false);
+            copy(in, out);
+            out.close();
+            out = null;
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Stream the plain content of a compressed file.
+     */
+    public static InputStream open(final File source) throws IOException {
+        final Inflater inflater = new Inflater();
+        return new InflaterInputStream(new FileInputStream(source), inflater, BUFFER_SIZE) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    // Given inflaters are not ended by the stream
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * A file being written, deflated when a sample of its start shrinks enough.
+     * <p>
+     * The first SAMPLE_SIZE bytes are held until the decision is taken, then
+     * the content goes straight to the file, plain or deflated, so it is only
+     * written once. The digests of the plain content are computed on the way.
+     */
+    static class Output extends OutputStream {
+        private final File file;
+        private final int level;
+        private final ContentDigests digests;
+        private OutputStream out;
+        private Deflater deflater = null;
+        /**
+         * Start of the content, null once the decision is taken
+         */
+        private byte[] sample;
+        private int sampled = 0;
+        private long length = 0;
+        private boolean closed = false;
+
+        /**
+         * @param level deflater level, 0 to write the content plain
+         */
+        Output(final File file, final int level, final ContentDigests digests) throws IOException {
+            this.file = file;
+            this.level = level;
+            this.digests = digests;
+            this.out = new FileOutputStream(file, false);
+            this.sample = level > 0 ? new byte[SAMPLE_SIZE] : null;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            digests.update(ByteBuffer.wrap(b, off, len));
+            length += len;
+            if (sample == null) {
+                out.write(b, off, len);
+                return;
+            }
+            final int held = Math.min(len, sample.length - sampled);
+            System.arraycopy(b, off, sample, sampled, held);
+            sampled += held;
+            if (sampled == sample.length) {
+                decide();
+                out.write(b, off + held, len - held);
+            }
+        }
+
+        private void decide() throws IOException {
+            final byte[] held = sample;
+            sample = null;
+            if (sampled >= MIN_SIZE && isCompressible(held, sampled, level)) {
+                deflater = new Deflater(level);
+                out = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            }
+            out.write(held, 0, sampled);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (sample != null) {
+                    decide();
+                }
+                out.close();
+            } finally {
+                closeQuietly(out);
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * Bytes of plain content written
+         */
+        long getLength() {
+            return length;
+        }
+
+        /**
+         * Whether the file holds the content deflated, only known once closed
+         */
+        boolean isCompressed() {
+            return deflater != null;
+        }
+
+        ContentDigests getDigests() {
+            return digests;
+        }
+    }
+
+    private static void copy(final InputStream in, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
+// vim: ts=4:sw=4:et
@@ -0,0 +1,285 @@
+package com.wisdomgarden.trpc.openwith;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Copy the content of an uri into a file.
+ * <p>
+ * When the provider hands out a regular file descriptor and no digest is
+ * asked for, bytes are moved with FileChannel.transferTo and never enter the
+ * java heap. Otherwise, and for pipes, sockets and stream-only providers, they
+ * are copied through a pooled direct buffer, and digests are computed from the
+ * copy buffer without reading the content twice.
+ * <p>
+ * A copy can continue a previous one from an offset when the source is a
+ * regular file descriptor, see ShareCache for the checkpoints.
+ */
+class ContentCopier {
+
+    /**
+     * Bytes moved by a single transferTo call, progress is reported between calls.
+     */
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Bytes copied between two checkpoints of a resumable copy.
+     */
+    private static final long CHECKPOINT_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Notified when the bytes copied so far are safely on disk.
+     */
+    interface Checkpoint {
+        void onCheckpoint(long length) throws IOException;
+    }
+
+    /**
+     * Thrown when a copy cannot resume because the source cannot be read from an offset.
+     */
+    static class UnseekableSourceException extends IOException {
+        UnseekableSourceException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Copy the content of uri into dest from offset, dest already holding the
+     * first offset bytes, and report checkpoints while copying.
+     * <p>
+     * The copied bytes are fed to digests when it is not null, the first offset
+     * bytes are not. Progress is reported from the start of the content, offset included.
+     *
+     * @return the length of dest
+     * @throws UnseekableSourceException when offset is not 0 and the source can only be read from its start
+     */
+    public static long copy(
+            final Context context,
+            final Uri uri,
+            final File dest,
+            final CopyListener listener,
+            final ContentDigests digests,
+            final long offset,
+            final Checkpoint checkpoint) throws IOException {
+        final long start = IngestMetrics.start();
+        final long copied = copyContent(context, uri, dest, listener, digests, offset, checkpoint);
+        IngestMetrics.record(IngestMetrics.COPY, start);
+        IngestMetrics.addCopiedBytes(copied);
+        return offset + copied;
+    }
+
+    /**
+     * Copy the content of uri into out, a stream such as ContentCompressor.Output,
+     * without resume nor checkpoints. out is not closed.
+     * <p>
+     * The bytes go through the heap, only meant for text-like content to deflate.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(
+            final Context context,
+            final Uri uri,
+            final OutputStream out,
+            final CopyListener listener) throws IOException {
+        final long start = IngestMetrics.start();
+        InputStream in = null;
+        long total = 0;
+        try {
+            in = context.getContentResolver().openInputStream(uri);
+            if (in == null) {
+                throw new FileNotFoundException("cannot open " + uri);
+            }
+            final byte[] buffer = new byte[ByteStreams.DIRECT_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
+                if (listener != null) {
+                    listener.onProgress(total);
+                }
+            }
+        } finally {
+            closeQuietly(in);
+            IngestMetrics.record(IngestMetrics.COPY, start);
+            IngestMetrics.addCopiedBytes(total);
+        }
+        return total;
+    }
+
+    private static long copyContent(
+            final Context context,
+            final Uri uri,
+            final File dest,
+            final CopyListener listener,
+            final ContentDigests digests,
+            final long offset,
+            final Checkpoint checkpoint) throws IOException {
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            // Some providers can only open streams (virtual files, ...)
+            pfd = null;
+        }
+
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            final boolean seekable = pfd != null && pfd.getStatSize() >= 0;
+            if (offset > 0 && !seekable) {
+                throw new UnseekableSourceException("cannot resume " + uri);
+            }
+            final Progress progress = new Progress(offset, listener, checkpoint);
+            out = new FileOutputStream(dest, offset > 0);
+            final FileChannel target = out.getChannel();
+            if (pfd == null) {
+                in = context.getContentResolver().openInputStream(uri);
+                if (in == null) {
+                    throw new FileNotFoundException("cannot open " + uri);
+                }
+                return pump(Channels.newChannel(in), target, progress, digests);
+            }
+
+            in = new FileInputStream(pfd.getFileDescriptor());
+            final FileChannel source = ((FileInputStream) in).getChannel();
+            if (offset > 0) {
+                source.position(offset);
+            }
+            if (seekable && digests == null) {
+                return transfer(source, target, progress);
+            }
+            return pump(source, target, progress, digests);
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+            closeQuietly(pfd);
+        }
+    }
+
+    /**
+     * Copy between two file backed channels, in kernel space.
+     */
+    private static long transfer(
+            final FileChannel source,
+            final FileChannel target,
+            final Progress progress) throws IOException {
+        final long size = source.size();
+        long position = source.position();
+        final long start = position;
+        while (position < size) {
+            final long transferred = source.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), target);
+            if (transferred <= 0) {
+                // The file shrank while copying
+                break;
+            }
+            position += transferred;
+            progress.update(position - start, target);
+        }
+        return position - start;
+    }
+
+    /**
+     * Copy from any channel, through a pooled direct buffer.
+     */
+    private static long pump(
+            final ReadableByteChannel source,
+            final FileChannel target,
+            final Progress progress,
+            final ContentDigests digests) throws IOException {
+        final ByteBuffer buffer = ByteStreams.acquireDirectBuffer();
+        long total = 0;
+        try {
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                if (digests != null) {
+                    digests.update(buffer);
+                }
+                while (buffer.hasRemaining()) {
+                    total += target.write(buffer);
+                }
+                buffer.clear();
+                progress.update(total, target);
+            }
+        } finally {
+            ByteStreams.releaseDirectBuffer(buffer);
+        }
+        return total;
+    }
+
+    /**
+     * Feed the content of a local file from offset to digests.
+     */
+    static void digestFile(final File file, final long offset, final ContentDigests digests) throws IOException {
+        FileInputStream in = null;
+        final ByteBuffer buffer = ByteStreams.acquireDirectBuffer();
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            channel.position(offset);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digests.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            ByteStreams.releaseDirectBuffer(buffer);
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reports progress and checkpoints of a copy.
+     */
+    private static class Progress {
+        private final long offset;
+        private final CopyListener listener;
+        private final Checkpoint checkpoint;
+        private long checkpointed = 0;
+
+        Progress(final long offset, final CopyListener listener, final Checkpoint checkpoint) {
+            this.offset = offset;
+            this.listener = listener;
+            this.checkpoint = checkpoint;
+        }
+
+        /**
+         * @param copied bytes copied by this run
+         */
+        void update(final long copied, final FileChannel target) throws IOException {
+            if (listener != null) {
+                listener.onProgress(offset + copied);
+            }
+            if (checkpoint != null && copied - checkpointed >= CHECKPOINT_SIZE) {
+                checkpointed = copied;
+                target.force(false);
+                checkpoint.onCheckpoint(offset + copied);
+            }
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
+// vim: ts=4:sw=4:et
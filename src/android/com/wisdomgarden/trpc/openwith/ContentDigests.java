@@ -0,0 +1,160 @@
+package com.wisdomgarden.trpc.openwith;
+
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Digests computed over the bytes of a copy, while they go through the copy buffer.
+ * <p>
+ * Any MessageDigest algorithm ("SHA-256", "SHA-1", "MD5", ...) is accepted, along
+ * with the "CRC32" and "CRC32C" checksums. CRC32C is only found on recent runtimes,
+ * algorithms the device does not provide are skipped.
+ */
+class ContentDigests {
+    private static final String TAG = "OpenWithPlugin";
+
+    public static final String SHA_256 = "SHA-256";
+
+    /**
+     * Algorithms exported along with each copied item, none by default.
+     * Only holds algorithms available on the device.
+     */
+    private static String[] ALGORITHMS = new String[0];
+
+    public static synchronized void setAlgorithms(final String algorithms) {
+        final List<String> names = new ArrayList<>();
+        if (algorithms != null) {
+            for (String name : algorithms.split(",")) {
+                name = name.trim().toUpperCase(Locale.US);
+                if (!name.isEmpty() && !names.contains(name) && newDigester(name) != null) {
+                    names.add(name);
+                }
+            }
+        }
+        ALGORITHMS = names.toArray(new String[0]);
+    }
+
+    public static synchronized String[] getAlgorithms() {
+        return ALGORITHMS;
+    }
+
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * MessageDigest or Checksum instances, in the order of names
+     */
+    private final List<Object> digesters = new ArrayList<>();
+
+    /**
+     * Copy of the buffer for checksums which can only read arrays
+     */
+    private byte[] scratch;
+
+    /**
+     * @param algorithms algorithms to compute, unknown ones are skipped
+     */
+    public ContentDigests(final String... algorithms) {
+        for (String name : algorithms) {
+            if (names.contains(name)) {
+                continue;
+            }
+            final Object digester = newDigester(name);
+            if (digester != null) {
+                names.add(name);
+                digesters.add(digester);
+            }
+        }
+    }
+
+    /**
+     * Feed the remaining bytes of buffer, leaving its position untouched.
+     */
+    public void update(final ByteBuffer buffer) {
+        for (Object digester : digesters) {
+            buffer.mark();
+            if (digester instanceof MessageDigest) {
+                ((MessageDigest) digester).update(buffer);
+            } else if (digester instanceof CRC32 && Build.VERSION.SDK_INT >= 26) {
+                ((CRC32) digester).update(buffer);
+            } else {
+                update((Checksum) digester, buffer);
+            }
+            buffer.reset();
+        }
+    }
+
+    private void update(final Checksum checksum, final ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        final int length = buffer.remaining();
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[length];
+        }
+        buffer.get(scratch, 0, length);
+        checksum.update(scratch, 0, length);
+    }
+
+    /**
+     * Finish the digests, lowercase hexadecimal by algorithm name.
+     * Can only be called once.
+     */
+    public JSONObject toJSON() {
+        final JSONObject json = new JSONObject();
+        for (int i = 0; i < names.size(); i++) {
+            final Object digester = digesters.get(i);
+            final String value = digester instanceof MessageDigest
+                    ? toHex(((MessageDigest) digester).digest())
+                    : String.format(Locale.US, "%08x", ((Checksum) digester).getValue());
+            try {
+                json.put(names.get(i), value);
+            } catch (JSONException e) {
+                //
+            }
+        }
+        return json;
+    }
+
+    private static Object newDigester(final String name) {
+        if ("CRC32".equals(name)) {
+            return new CRC32();
+        }
+        if ("CRC32C".equals(name)) {
+            try {
+                return Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                Log.w(TAG, "CRC32C is not available on this device");
+                return null;
+            }
+        }
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, "Unknown digest algorithm: " + name);
+            return null;
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
+// vim: ts=4:sw=4:et
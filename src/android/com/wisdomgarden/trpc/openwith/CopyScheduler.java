@@ -0,0 +1,156 @@
+package com.wisdomgarden.trpc.openwith;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Order in which the items of a share are copied, and their cancellation.
+ * <p>
+ * Copies only start once the metadata of the items is known. Items javascript
+ * asked for with prioritize go first, most recent request first, then the
+ * shortest jobs: smallest size reported by the provider, items of unknown
+ * size last, share order between equals. A cancelled item is dropped before
+ * its copy starts, or stopped between two chunks of its copy.
+ */
+class CopyScheduler {
+
+    /**
+     * Thrown out of a copy whose item was cancelled.
+     */
+    static class CancelledException extends IOException {
+        CancelledException(final String itemId) {
+            super("cancelled: " + itemId);
+        }
+    }
+
+    /**
+     * The scheduling state of an item, from its metadata to the end of its copy.
+     */
+    static class Ticket {
+        final String itemId;
+        final long size;
+        /**
+         * Position of the item in its share, set by the caller of next
+         */
+        int order = 0;
+        /**
+         * Higher goes first, 0 when the item was not prioritized. Guarded by CopyScheduler.class.
+         */
+        private long priority = 0;
+        private volatile boolean cancelled = false;
+
+        Ticket(final String itemId, final long size) {
+            this.itemId = itemId;
+            this.size = size;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * A copy listener stopping the copy once the item is cancelled.
+         *
+         * @param progress notified of the progress, may be null
+         */
+        CopyListener listener(final CopyListener progress) {
+            return new CopyListener() {
+                @Override
+                public void onProgress(final long bytesCopied) throws IOException {
+                    if (cancelled) {
+                        throw new CancelledException(itemId);
+                    }
+                    if (progress != null) {
+                        progress.onProgress(bytesCopied);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * item id -&gt; ticket of the items waiting for, or running, their copy
+     */
+    private static final Map<String, Ticket> tickets = new HashMap<>();
+
+    private static long prioritySequence = 0;
+
+    /**
+     * Track an item until unregister.
+     *
+     * @param size size reported by the provider, -1 if unknown
+     */
+    public static synchronized Ticket register(final String itemId, final long size) {
+        final Ticket ticket = new Ticket(itemId, size);
+        tickets.put(itemId, ticket);
+        return ticket;
+    }
+
+    public static synchronized void unregister(final Ticket ticket) {
+        if (tickets.get(ticket.itemId) == ticket) {
+            tickets.remove(ticket.itemId);
+        }
+    }
+
+    /**
+     * Copy an item before the others still waiting.
+     *
+     * @return false when the item is not waiting for, nor running, its copy
+     */
+    public static synchronized boolean prioritize(final String itemId) {
+        final Ticket ticket = tickets.get(itemId);
+        if (ticket == null) {
+            return false;
+        }
+        ticket.priority = ++prioritySequence;
+        return true;
+    }
+
+    /**
+     * Drop an item, stopping its copy if it already started.
+     *
+     * @return false when the item is not waiting for, nor running, its copy
+     */
+    public static synchronized boolean cancel(final String itemId) {
+        final Ticket ticket = tickets.get(itemId);
+        if (ticket == null) {
+            return false;
+        }
+        ticket.cancelled = true;
+        return true;
+    }
+
+    /**
+     * Take the ticket to run next out of waiting, which concurrent workers share.
+     *
+     * @return null when nothing is waiting
+     */
+    public static synchronized Ticket next(final List<Ticket> waiting) {
+        Ticket best = null;
+        for (Ticket ticket : waiting) {
+            if (best == null || before(ticket, best)) {
+                best = ticket;
+            }
+        }
+        if (best != null) {
+            waiting.remove(best);
+        }
+        return best;
+    }
+
+    private static boolean before(final Ticket a, final Ticket b) {
+        if (a.priority != b.priority) {
+            return a.priority > b.priority;
+        }
+        if ((a.size < 0) != (b.size < 0)) {
+            return a.size >= 0;
+        }
+        if (a.size != b.size) {
+            return a.size < b.size;
+        }
+        return a.order < b.order;
+    }
+}
+// vim: ts=4:sw=4:et
@@ -0,0 +1,306 @@
+package com.wisdomgarden.trpc.openwith;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Replace shared photos by a downscaled copy, decoded straight from the content uri.
+ * <p>
+ * The original is never copied: its bounds are read first, then it is decoded with
+ * the largest power of two sample size that keeps it above the configured
+ * dimension, resized and compressed into the share cache. Rotation found in the
+ * EXIF data is applied to the pixels, the other EXIF tags are copied over when
+ * asked to (JPEG output only).
+ */
+class ImageScaler {
+
+    public static final String FORMAT_JPEG = "jpeg";
+    public static final String FORMAT_WEBP = "webp";
+
+    /**
+     * Tags copied to the downscaled file when EXIF data is kept
+     */
+    private static final String[] EXIF_TAGS = {
+            ExifInterface.TAG_DATETIME,
+            ExifInterface.TAG_DATETIME_ORIGINAL,
+            ExifInterface.TAG_DATETIME_DIGITIZED,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_ALTITUDE,
+            ExifInterface.TAG_GPS_ALTITUDE_REF,
+            ExifInterface.TAG_GPS_TIMESTAMP,
+            ExifInterface.TAG_GPS_DATESTAMP,
+            ExifInterface.TAG_EXPOSURE_TIME,
+            ExifInterface.TAG_F_NUMBER,
+            ExifInterface.TAG_FOCAL_LENGTH,
+            ExifInterface.TAG_FLASH,
+            ExifInterface.TAG_WHITE_BALANCE
+    };
+
+    /**
+     * Longest side of the downscaled images, 0 to keep originals.
+     */
+    private static int MAX_DIMENSION = 0;
+    private static int QUALITY = OpenWithPlugin.DEFAULT_IMAGE_QUALITY;
+    private static String FORMAT = FORMAT_JPEG;
+    private static boolean KEEP_EXIF = false;
+
+    public static synchronized void configure(
+            final int maxDimension,
+            final int quality,
+            final String format,
+            final boolean keepExif) {
+        MAX_DIMENSION = Math.max(0, maxDimension);
+        QUALITY = Math.max(0, Math.min(100, quality));
+        FORMAT = FORMAT_WEBP.equalsIgnoreCase(format) ? FORMAT_WEBP : FORMAT_JPEG;
+        KEEP_EXIF = keepExif;
+    }
+
+    public static synchronized boolean isEnabled() {
+        return MAX_DIMENSION > 0;
+    }
+
+    /**
+     * Still images BitmapFactory can decode. Animations would lose their frames.
+     */
+    public static boolean accepts(final String type) {
+        return type != null
+                && type.startsWith("image/")
+                && !"image/gif".equals(type)
+                && !type.startsWith("image/svg");
+    }
+
+    /**
+     * The result of a downscale.
+     */
+    static class ScaledImage {
+        public final StoredContent stored;
+        public final String fileName;
+        public final String type;
+        public final int width;
+        public final int height;
+
+        ScaledImage(final StoredContent stored, final String fileName, final String type, final int width, final int height) {
+            this.stored = stored;
+            this.fileName = fileName;
+            this.type = type;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Store a downscaled copy of an image in the share cache.
+     *
+     * @param retain count a reference to the stored file for a pending share
+     * @return null when the content is not a decodable image, or is already small enough
+     */
+    public static ScaledImage scale(
+            final Context context,
+            final Uri uri,
+            final String fileName,
+            final File tmpDir,
+            final boolean retain) throws IOException {
+        final int maxDimension;
+        final int quality;
+        final String format;
+        final boolean keepExif;
+        synchronized (ImageScaler.class) {
+            maxDimension = MAX_DIMENSION;
+            quality = QUALITY;
+            format = FORMAT;
+            keepExif = KEEP_EXIF;
+        }
+        if (maxDimension <= 0) {
+            return null;
+        }
+
+        final Bitmap bitmap = decodeSampled(context, uri, maxDimension);
+        if (bitmap == null) {
+            return null;
+        }
+
+        final ShareCache shareCache = ShareCache.get(tmpDir);
+        final File tmpFile = shareCache.newTempFile();
+        final boolean webp = FORMAT_WEBP.equals(format);
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile, false);
+            if (!bitmap.compress(webp ? webpFormat() : Bitmap.CompressFormat.JPEG, quality, out)) {
+                throw new IOException("cannot encode " + uri);
+            }
+            out.close();
+            out = null;
+            if (keepExif && !webp) {
+                copyExif(context, uri, tmpFile, width, height);
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        } finally {
+            closeQuietly(out);
+            bitmap.recycle();
+        }
+
+        final String scaledName = replaceExtension(fileName, webp ? ".webp" : ".jpg");
+        final StoredContent stored = shareCache.adopt(tmpFile, scaledName, retain);
+        return new ScaledImage(stored, scaledName, webp ? "image/webp" : "image/jpeg", width, height);
+    }
+
+    /**
+     * Decode an image so its longest side is maxDimension, upright.
+     *
+     * @return null when the content is not a decodable image, or is not larger than maxDimension
+     */
+    static Bitmap decodeSampled(final Context context, final Uri uri, final int maxDimension) throws IOException {
+        // Bounds only, nothing is allocated for the pixels
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(context, uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        if (Math.max(options.outWidth, options.outHeight) <= maxDimension) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        final int orientation = readOrientation(context, uri);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        final Bitmap bitmap = decode(context, uri, options);
+        if (bitmap == null) {
+            return null;
+        }
+        return fit(bitmap, maxDimension, orientation);
+    }
+
+    private static Bitmap decode(final Context context, final Uri uri, final BitmapFactory.Options options) throws IOException {
+        InputStream in = null;
+        try {
+            in = context.getContentResolver().openInputStream(uri);
+            if (in == null) {
+                throw new IOException("cannot open " + uri);
+            }
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Resize to maxDimension and apply the EXIF rotation, recycling the decoded bitmap.
+     */
+    private static Bitmap fit(final Bitmap bitmap, final int maxDimension, final int orientation) {
+        final float scale = Math.min(1f, maxDimension / (float) Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        final Matrix matrix = new Matrix();
+        matrix.postScale(scale, scale);
+        if (orientation == ExifInterface.ORIENTATION_ROTATE_90) {
+            matrix.postRotate(90);
+        } else if (orientation == ExifInterface.ORIENTATION_ROTATE_180) {
+            matrix.postRotate(180);
+        } else if (orientation == ExifInterface.ORIENTATION_ROTATE_270) {
+            matrix.postRotate(270);
+        }
+        final Bitmap fitted = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (fitted != bitmap) {
+            bitmap.recycle();
+        }
+        return fitted;
+    }
+
+    private static int readOrientation(final Context context, final Uri uri) {
+        if (Build.VERSION.SDK_INT < 24) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+        InputStream in = null;
+        try {
+            in = context.getContentResolver().openInputStream(uri);
+            if (in == null) {
+                return ExifInterface.ORIENTATION_NORMAL;
+            }
+            return new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (Exception e) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Copy the EXIF tags of the original. Rotation is already applied to the pixels.
+     */
+    private static void copyExif(final Context context, final Uri uri, final File dest, final int width, final int height) {
+        if (Build.VERSION.SDK_INT < 24) {
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = context.getContentResolver().openInputStream(uri);
+            if (in == null) {
+                return;
+            }
+            final ExifInterface source = new ExifInterface(in);
+            final ExifInterface target = new ExifInterface(dest.getAbsolutePath());
+            for (String tag : EXIF_TAGS) {
+                final String value = source.getAttribute(tag);
+                if (value != null) {
+                    target.setAttribute(tag, value);
+                }
+            }
+            target.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_NORMAL));
+            target.setAttribute(ExifInterface.TAG_IMAGE_WIDTH, String.valueOf(width));
+            target.setAttribute(ExifInterface.TAG_IMAGE_LENGTH, String.valueOf(height));
+            target.saveAttributes();
+        } catch (Exception e) {
+            // The downscaled image is still usable without its metadata
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat webpFormat() {
+        return Build.VERSION.SDK_INT >= 30
+                ? Bitmap.CompressFormat.WEBP_LOSSY
+                : Bitmap.CompressFormat.WEBP;
+    }
+
+    private static String replaceExtension(final String fileName, final String extension) {
+        final String name = fileName == null || fileName.isEmpty() ? "image" : fileName;
+        final int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + extension;
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
+// vim: ts=4:sw=4:et
@@ -0,0 +1,225 @@
+package com.wisdomgarden.trpc.openwith;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory timings of the share ingestion phases.
+ * <p>
+ * Each phase keeps a count, a total, a maximum and a log2 histogram of its
+ * durations in lock-free counters. While metrics are disabled (the default)
+ * start() returns 0 and record() returns at once, without allocating.
+ * <p>
+ * Usage:
+ * <pre>
+ * final long start = IngestMetrics.start();
+ * ...
+ * IngestMetrics.record(IngestMetrics.COPY, start);
+ * </pre>
+ */
+class IngestMetrics {
+
+    /**
+     * Conversion of a whole intent by Serializer, queries and copies included
+     */
+    public static final int INTENT_PARSE = 0;
+    /**
+     * ContentResolver queries made by PathUtil
+     */
+    public static final int PATH_QUERY = 1;
+    /**
+     * Copy of content bytes, see also copiedBytes
+     */
+    public static final int COPY = 2;
+    /**
+     * Building the JSON of an item
+     */
+    public static final int JSON_BUILD = 3;
+    /**
+     * Saving a share to the journal
+     */
+    public static final int PERSIST = 4;
+    /**
+     * Handling of fetchSharedData
+     */
+    public static final int FETCH = 5;
+
+    private static final String[] PHASE_NAMES = {
+            "intentParse", "pathQuery", "copy", "jsonBuild", "persist", "fetch"
+    };
+
+    /**
+     * Histogram bucket i counts durations in [2^i, 2^(i+1)) microseconds.
+     */
+    private static final int BUCKETS = 24;
+
+    private static final int COUNT = 0;
+    private static final int TOTAL = 1;
+    private static final int MAX = 2;
+    private static final int FIRST_BUCKET = 3;
+    private static final int STRIDE = FIRST_BUCKET + BUCKETS;
+
+    /**
+     * Shares for which a trace is kept
+     */
+    private static final int MAX_TRACES = 16;
+
+    private static volatile boolean enabled = false;
+
+    private static final AtomicLongArray counters = new AtomicLongArray(PHASE_NAMES.length * STRIDE);
+    private static final AtomicLong copiedBytes = new AtomicLong();
+    private static final ArrayDeque<JSONObject> traces = new ArrayDeque<>();
+
+    public static void setEnabled(final boolean value) {
+        enabled = value;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start timing a phase.
+     *
+     * @return the start time to give to record, 0 when metrics are disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the duration of a phase started with start().
+     */
+    public static void record(final int phase, final long start) {
+        if (start == 0 || !enabled) {
+            return;
+        }
+        final long nanos = System.nanoTime() - start;
+        final int base = phase * STRIDE;
+        counters.incrementAndGet(base + COUNT);
+        counters.addAndGet(base + TOTAL, nanos);
+        long max = counters.get(base + MAX);
+        while (nanos > max && !counters.compareAndSet(base + MAX, max, nanos)) {
+            max = counters.get(base + MAX);
+        }
+        final long micros = nanos / 1000;
+        final int bucket = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        counters.incrementAndGet(base + FIRST_BUCKET + bucket);
+    }
+
+    /**
+     * Count bytes copied out of content uris.
+     */
+    public static void addCopiedBytes(final long bytes) {
+        if (enabled) {
+            copiedBytes.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Take the phase totals at the beginning of a share, to build its trace with endTrace.
+     *
+     * @return null when metrics are disabled
+     */
+    public static long[] beginTrace() {
+        if (!enabled) {
+            return null;
+        }
+        final long[] totals = new long[PHASE_NAMES.length + 1];
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            totals[phase] = counters.get(phase * STRIDE + TOTAL);
+        }
+        totals[PHASE_NAMES.length] = copiedBytes.get();
+        return totals;
+    }
+
+    /**
+     * Keep the time spent in each phase since beginTrace as the trace of a share.
+     * <p>
+     * Work running concurrently with the share (a materialize call for instance)
+     * is counted in its trace too.
+     */
+    public static void endTrace(final String action, final long[] begin) {
+        if (begin == null || !enabled) {
+            return;
+        }
+        try {
+            final JSONObject trace = new JSONObject();
+            trace.put("action", action);
+            trace.put("time", System.currentTimeMillis());
+            for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+                trace.put(PHASE_NAMES[phase] + "Ms", toMillis(counters.get(phase * STRIDE + TOTAL) - begin[phase]));
+            }
+            trace.put("copiedBytes", copiedBytes.get() - begin[PHASE_NAMES.length]);
+            synchronized (traces) {
+                if (traces.size() >= MAX_TRACES) {
+                    traces.removeFirst();
+                }
+                traces.addLast(trace);
+            }
+        } catch (JSONException e) {
+            //
+        }
+    }
+
+    /**
+     * Export all counters.
+     *
+     * @param withTraces include the traces of the last shares
+     */
+    public static JSONObject snapshot(final boolean withTraces) throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("enabled", enabled);
+        final JSONObject phases = new JSONObject();
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            final int base = phase * STRIDE;
+            final JSONObject stats = new JSONObject();
+            stats.put("count", counters.get(base + COUNT));
+            stats.put("totalMs", toMillis(counters.get(base + TOTAL)));
+            stats.put("maxMs", toMillis(counters.get(base + MAX)));
+            final JSONArray histogram = new JSONArray();
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                histogram.put(counters.get(base + FIRST_BUCKET + bucket));
+            }
+            stats.put("histogramLog2Us", histogram);
+            phases.put(PHASE_NAMES[phase], stats);
+        }
+        result.put("phases", phases);
+        result.put("copiedBytes", copiedBytes.get());
+        if (withTraces) {
+            final JSONArray traceList = new JSONArray();
+            synchronized (traces) {
+                final Iterator<JSONObject> it = traces.iterator();
+                while (it.hasNext()) {
+                    traceList.put(it.next());
+                }
+            }
+            result.put("traces", traceList);
+        }
+        return result;
+    }
+
+    /**
+     * Zero all counters and forget the traces.
+     */
+    public static void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        copiedBytes.set(0);
+        synchronized (traces) {
+            traces.clear();
+        }
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / 1000000.0;
+    }
+}
+// vim: ts=4:sw=4:et
@@ -0,0 +1,173 @@
+package com.wisdomgarden.trpc.openwith;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary layout of a share manifest, sent to javascript as an ArrayBuffer.
+ * <p>
+ * Big endian, decoded by openwith.js:
+ * <pre>
+ * "OWM" version(u8)
+ * keyCount(u16) key*                      object keys, as strings
+ * share                                    a value, the share without its items
+ * itemCount(u32) itemOffset(u32)*          offsets from the start of the buffer
+ * item*                                    values
+ * </pre>
+ * A value is a tag byte followed by its payload: null, false, true, a
+ * float64 number, a string (u32 byte length, UTF-8), an object (u32 count,
+ * then u16 key index and value pairs) or an array (u32 count, values).
+ * Keys are only written once, and the offsets let javascript decode an item
+ * when it is first read rather than the whole manifest upfront.
+ */
+class ManifestCodec {
+
+    private static final int VERSION = 1;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_NUMBER = 3;
+    private static final int TAG_STRING = 4;
+    private static final int TAG_OBJECT = 5;
+    private static final int TAG_ARRAY = 6;
+
+    private final Map<String, Integer> keyIndexes = new HashMap<>();
+    private final List<String> keys = new ArrayList<>();
+
+    private ManifestCodec() {
+    }
+
+    /**
+     * Encode a share, or a page of shares, with its "items".
+     */
+    public static byte[] encode(final JSONObject share) throws IOException {
+        return new ManifestCodec().write(share);
+    }
+
+    private byte[] write(final JSONObject share) throws IOException {
+        final JSONArray items = share.optJSONArray("items");
+        final int itemCount = items == null ? 0 : items.length();
+        collectKeys(share);
+        if (keys.size() > 0xffff) {
+            throw new IOException("too many keys");
+        }
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256 + itemCount * 256);
+        final DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte('O');
+        out.writeByte('W');
+        out.writeByte('M');
+        out.writeByte(VERSION);
+        out.writeShort(keys.size());
+        for (String key : keys) {
+            writeString(out, key);
+        }
+        writeObject(out, share, "items");
+
+        // Items are written after their offset table, which is patched below
+        out.writeInt(itemCount);
+        final int offsetsStart = out.size();
+        for (int i = 0; i < itemCount; i++) {
+            out.writeInt(0);
+        }
+        final int[] offsets = new int[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            offsets[i] = out.size();
+            writeValue(out, items.opt(i));
+        }
+        out.flush();
+
+        final byte[] bytes = buffer.toByteArray();
+        for (int i = 0; i < itemCount; i++) {
+            putInt(bytes, offsetsStart + i * 4, offsets[i]);
+        }
+        return bytes;
+    }
+
+    private void collectKeys(final Object value) {
+        if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            final Iterator<String> it = object.keys();
+            while (it.hasNext()) {
+                final String key = it.next();
+                if (!keyIndexes.containsKey(key)) {
+                    keyIndexes.put(key, keys.size());
+                    keys.add(key);
+                }
+                collectKeys(object.opt(key));
+            }
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            for (int i = 0; i < array.length(); i++) {
+                collectKeys(array.opt(i));
+            }
+        }
+    }
+
+    private void writeValue(final DataOutputStream out, final Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Number) {
+            out.writeByte(TAG_NUMBER);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof JSONObject) {
+            writeObject(out, (JSONObject) value, null);
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            out.writeByte(TAG_ARRAY);
+            out.writeInt(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(out, array.opt(i));
+            }
+        } else {
+            out.writeByte(TAG_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    /**
+     * @param skippedKey key left out of the object, null for none
+     */
+    private void writeObject(final DataOutputStream out, final JSONObject object, final String skippedKey) throws IOException {
+        final List<String> objectKeys = new ArrayList<>(object.length());
+        final Iterator<String> it = object.keys();
+        while (it.hasNext()) {
+            final String key = it.next();
+            if (!key.equals(skippedKey)) {
+                objectKeys.add(key);
+            }
+        }
+        out.writeByte(TAG_OBJECT);
+        out.writeInt(objectKeys.size());
+        for (String key : objectKeys) {
+            out.writeShort(keyIndexes.get(key));
+            writeValue(out, object.opt(key));
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void putInt(final byte[] bytes, final int position, final int value) {
+        bytes[position] = (byte) (value >>> 24);
+        bytes[position + 1] = (byte) (value >>> 16);
+        bytes[position + 2] = (byte) (value >>> 8);
+        bytes[position + 3] = (byte) value;
+    }
+}
+// vim: ts=4:sw=4:et
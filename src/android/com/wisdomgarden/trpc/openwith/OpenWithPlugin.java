@@ -6,6 +6,9 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import org.apache.cordova.CallbackContext;
@@ -17,9 +20,26 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This is the entry point of the openwith plugin
@@ -57,11 +77,37 @@ public class OpenWithPlugin extends CordovaPlugin {
     private int verbosity = INFO;
 
     public static final int DEFAULT_ATTACHMENTS_WITH_MAX_COUNT = 5;
+    public static final int DEFAULT_INGEST_PARALLELISM = 1;
+    public static final int DEFAULT_CACHE_QUOTA_MB = 256;
+    public static final int DEFAULT_IMAGE_QUALITY = 85;
+    public static final int DEFAULT_MAX_INLINE_TEXT = 256 * 1024;
+
+    /**
+     * Bytes copied between two materialize progress notifications
+     */
+    private static final long PROGRESS_STEP = 1024 * 1024;
+
+    /**
+     * Items returned by a paged fetchSharedData when no limit is given
+     */
+    private static final int DEFAULT_PAGE_SIZE = 20;
+
+    /**
+     * True when a message of this level would be logged.
+     * <p>
+     * Check it before building costly messages.
+     */
+    private boolean isLoggable(final int level) {
+        return level >= verbosity;
+    }
 
     /**
      * Log to the console if verbosity level is greater or equal to level
      */
     private void log(final int level, final String message) {
+        if (!isLoggable(level)) {
+            return;
+        }
         switch (level) {
             case DEBUG:
                 Log.d(PLUGIN_NAME, message);
@@ -79,27 +125,210 @@ public class OpenWithPlugin extends CordovaPlugin {
     }
 
     /**
-     * Intents added before the handler has been registered
+     * Converted intents not saved in the journal yet, in arrival order
      */
-    private ArrayList pendingIntents = new ArrayList(); //NOPMD
+    private final List<JSONObject> pendingIntents = new ArrayList<>();
+
+    /**
+     * How long converted intents are held so a burst is saved with a single write,
+     * 0 saves each intent at once
+     */
+    private long coalesceWindowMs = 0;
+
+    /**
+     * Save of pendingIntents at the end of the current window, null when none.
+     * Only used on the ingestion executor.
+     */
+    private ScheduledFuture<?> pendingFlush = null;
 
     private SharedPreferences prefs;
 
+    /**
+     * Shares waiting to be fetched by javascript
+     */
+    private ShareJournal shareJournal;
+
     private int maxAttachmentCount = DEFAULT_ATTACHMENTS_WITH_MAX_COUNT;
 
+    private long cacheQuotaBytes = DEFAULT_CACHE_QUOTA_MB * 1024L * 1024L;
+
+    /**
+     * Runs intent ingestion (content copies included) away from the UI thread.
+     * <p>
+     * A single thread keeps shares in arrival order, and fetchSharedData is
+     * queued on it too so it never sees a half-built share.
+     */
+    private ScheduledExecutorService ingestExecutor;
+
+    /**
+     * Items ingested during this session, so javascript can refer to them by id
+     */
+    private final SharedItems sharedItems = new SharedItems();
+
+    /**
+     * Send fetched shares in the ManifestCodec layout rather than as JSON
+     */
+    private volatile boolean binaryManifests = false;
+
+    /**
+     * Receives shares and item events as they are ingested, see subscribe
+     */
+    private volatile CallbackContext subscriber = null;
+
+    /**
+     * Items being streamed to javascript, by item id
+     */
+    private final Map<String, ChunkReader> chunkReaders = new ConcurrentHashMap<>();
+
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
         log(DEBUG, "initialize()");
+        int ingestParallelism = DEFAULT_INGEST_PARALLELISM;
+        boolean lazyMaterialization = false;
+        boolean metrics = false;
+        String digests = null;
+        int imageMaxDimension = 0;
+        int imageQuality = DEFAULT_IMAGE_QUALITY;
+        String imageFormat = null;
+        boolean imageKeepExif = false;
+        int thumbnailSize = 0;
+        long maxItemBytes = 0;
+        long maxTotalBytes = 0;
+        int coalesceWindowMs = 0;
+        int compressionLevel = 0;
+        int maxInlineText = DEFAULT_MAX_INLINE_TEXT;
+        boolean expandZip = false;
+        int zipMaxEntries = ZipExpander.DEFAULT_MAX_ENTRIES;
+        long zipMaxBytes = ZipExpander.DEFAULT_MAX_BYTES;
         try {
             Context context = this.cordova.getContext();
             ApplicationInfo applicationInfo = context.getPackageManager().getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
             this.maxAttachmentCount = applicationInfo.metaData.getInt("OPEN_WITH_ATTACHMENTS_WITH_MAX_COUNT", DEFAULT_ATTACHMENTS_WITH_MAX_COUNT);
+            ingestParallelism = applicationInfo.metaData.getInt("OPEN_WITH_INGEST_PARALLELISM", DEFAULT_INGEST_PARALLELISM);
+            lazyMaterialization = applicationInfo.metaData.getBoolean("OPEN_WITH_LAZY_MATERIALIZATION", false);
+            metrics = applicationInfo.metaData.getBoolean("OPEN_WITH_METRICS", false);
+            digests = applicationInfo.metaData.getString("OPEN_WITH_DIGESTS");
+            imageMaxDimension = applicationInfo.metaData.getInt("OPEN_WITH_IMAGE_MAX_DIMENSION", 0);
+            imageQuality = applicationInfo.metaData.getInt("OPEN_WITH_IMAGE_QUALITY", DEFAULT_IMAGE_QUALITY);
+            imageFormat = applicationInfo.metaData.getString("OPEN_WITH_IMAGE_FORMAT");
+            imageKeepExif = applicationInfo.metaData.getBoolean("OPEN_WITH_IMAGE_KEEP_EXIF", false);
+            thumbnailSize = applicationInfo.metaData.getInt("OPEN_WITH_THUMBNAIL_SIZE", 0);
+            maxItemBytes = getLongMetaData(applicationInfo.metaData, "OPEN_WITH_MAX_ITEM_BYTES");
+            maxTotalBytes = getLongMetaData(applicationInfo.metaData, "OPEN_WITH_MAX_TOTAL_BYTES");
+            coalesceWindowMs = applicationInfo.metaData.getInt("OPEN_WITH_COALESCE_WINDOW_MS", 0);
+            compressionLevel = applicationInfo.metaData.getInt("OPEN_WITH_COMPRESSION_LEVEL", 0);
+            maxInlineText = applicationInfo.metaData.getInt("OPEN_WITH_MAX_INLINE_TEXT", DEFAULT_MAX_INLINE_TEXT);
+            expandZip = applicationInfo.metaData.getBoolean("OPEN_WITH_EXPAND_ZIP", false);
+            zipMaxEntries = applicationInfo.metaData.getInt("OPEN_WITH_ZIP_MAX_ENTRIES", ZipExpander.DEFAULT_MAX_ENTRIES);
+            zipMaxBytes = getLongMetaData(applicationInfo.metaData, "OPEN_WITH_ZIP_MAX_BYTES");
+            this.cacheQuotaBytes = applicationInfo.metaData.getInt("OPEN_WITH_CACHE_QUOTA_MB", DEFAULT_CACHE_QUOTA_MB) * 1024L * 1024L;
         } catch (Exception e) {
             this.maxAttachmentCount = DEFAULT_ATTACHMENTS_WITH_MAX_COUNT;
         }
         Serializer.setMaxAttachmentCount(this.maxAttachmentCount);
+        Serializer.setIngestParallelism(ingestParallelism);
+        Serializer.setLazyMaterialization(lazyMaterialization);
+        IngestMetrics.setEnabled(metrics);
+        ContentDigests.setAlgorithms(digests);
+        ImageScaler.configure(imageMaxDimension, imageQuality, imageFormat, imageKeepExif);
+        ThumbnailCache.setSize(thumbnailSize);
+        Serializer.setByteLimits(maxItemBytes, maxTotalBytes);
+        ContentCompressor.setLevel(compressionLevel);
+        ZipExpander.configure(expandZip, zipMaxEntries, zipMaxBytes);
+        Serializer.setMaxInlineText(maxInlineText);
+        this.coalesceWindowMs = Math.max(0, coalesceWindowMs);
+        Serializer.setItemListener(new ItemListener() {
+            @Override
+            public void onMetadataReady(final JSONObject item) {
+                pushItemEvent("metadataReady", item, null);
+            }
+
+            @Override
+            public void onBytesReady(final JSONObject item) {
+                pushItemEvent("bytesReady", item, null);
+            }
+
+            @Override
+            public void onItemFailed(final JSONObject item, final String reason) {
+                pushItemEvent("itemFailed", item, reason);
+            }
+
+            @Override
+            public void onThumbnailReady(final JSONObject item) {
+                pushItemEvent("thumbnailReady", item, null);
+            }
+        });
 
         this.prefs = this.cordova.getContext().getSharedPreferences("OpenWithSharedData", Activity.MODE_PRIVATE);
+        this.shareJournal = new ShareJournal(new File(this.cordova.getContext().getFilesDir(), "openwith/shares.journal"));
+        this.ingestExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.ingestExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                migrateSharedPreferences();
+            }
+        });
         super.initialize(cordova, webView);
+
+        // Keep the share cache under its quota and finish the copies a killed process
+        // left behind, without slowing down startup. Trimmed first: finished copies are
+        // not referenced until their share is ingested again, they would be evicted at once.
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                final long freed = getShareCache().trim(cacheQuotaBytes, getPendingPaths());
+                log(DEBUG, "initialize() -> evicted " + freed + " bytes from the share cache");
+                final int resumed = getShareCache().resumeInterrupted(OpenWithPlugin.this.cordova.getContext());
+                if (resumed > 0) {
+                    log(INFO, "initialize() -> finished " + resumed + " interrupted copies");
+                }
+            }
+        });
+    }
+
+    /**
+     * Read a byte count meta-data, given as a number or, above 2GB, as a string. 0 if missing.
+     */
+    private static long getLongMetaData(final Bundle metaData, final String key) {
+        final Object value = metaData.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Long.parseLong(((String) value).trim());
+            } catch (NumberFormatException e) {
+                //
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The app goes to the background and may be killed, save the intents of the current window.
+     */
+    @Override
+    public void onPause(final boolean multitasking) {
+        flushPendingIntents();
+        super.onPause(multitasking);
+    }
+
+    @Override
+    public void onStop() {
+        flushPendingIntents();
+        super.onStop();
+    }
+
+    /**
+     * The parent Activity is being destroyed, stop accepting new ingestion work.
+     */
+    @Override
+    public void onDestroy() {
+        if (ingestExecutor != null) {
+            flushPendingIntents();
+            ingestExecutor.shutdown();
+        }
+        closeChunkReaders();
+        super.onDestroy();
     }
 
     /**
@@ -112,7 +341,10 @@ public class OpenWithPlugin extends CordovaPlugin {
     @Override
     public void onReset() {
         verbosity = INFO;
-        pendingIntents.clear();
+        subscriber = null;
+        binaryManifests = false;
+        closeChunkReaders();
+        flushPendingIntents();
     }
 
     /**
@@ -125,13 +357,35 @@ public class OpenWithPlugin extends CordovaPlugin {
      */
     @Override
     public boolean execute(final String action, final JSONArray data, final CallbackContext callbackContext) {
-        log(DEBUG, "execute() called with action:" + action + " and options: " + data);
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, "execute() called with action:" + action + " and options: " + data);
+        }
         if ("setVerbosity".equals(action)) {
             return setVerbosity(data, callbackContext);
         } else if ("init".equals(action)) {
             return init(data, callbackContext);
         } else if ("fetchSharedData".equals(action)) {
             return fetchSharedData(data, callbackContext);
+        } else if ("materialize".equals(action)) {
+            return materialize(data, callbackContext);
+        } else if ("readChunks".equals(action)) {
+            return readChunks(data, callbackContext);
+        } else if ("ackChunk".equals(action)) {
+            return ackChunk(data, callbackContext);
+        } else if ("setManifestFormat".equals(action)) {
+            return setManifestFormat(data, callbackContext);
+        } else if ("subscribe".equals(action)) {
+            return subscribe(data, callbackContext);
+        } else if ("ackSharedData".equals(action)) {
+            return ackSharedData(data, callbackContext);
+        } else if ("purgeCache".equals(action)) {
+            return purgeCache(data, callbackContext);
+        } else if ("getMetrics".equals(action)) {
+            return getMetrics(data, callbackContext);
+        } else if ("prioritize".equals(action)) {
+            return prioritize(data, callbackContext);
+        } else if ("cancel".equals(action)) {
+            return cancel(data, callbackContext);
         } else if ("exit".equals(action)) {
             return exit(data, callbackContext);
         }
@@ -155,6 +409,20 @@ public class OpenWithPlugin extends CordovaPlugin {
         }
     }
 
+    /**
+     * Choose how fetchSharedData sends shares, args are ["json"] or ["binary"].
+     */
+    public boolean setManifestFormat(final JSONArray data, final CallbackContext context) {
+        log(DEBUG, "setManifestFormat() " + data);
+        final String format = data.optString(0, null);
+        if (data.length() != 1 || !("json".equals(format) || "binary".equals(format))) {
+            log(WARN, "setManifestFormat() -> invalidAction");
+            return false;
+        }
+        binaryManifests = "binary".equals(format);
+        return PluginResultSender.ok(context);
+    }
+
     // Initialize the plugin
     public boolean init(final JSONArray data, final CallbackContext context) {
         log(DEBUG, "init() " + data);
@@ -180,57 +448,812 @@ public class OpenWithPlugin extends CordovaPlugin {
         return PluginResultSender.ok(context);
     }
 
+    /**
+     * Without args, send all pending shares merged together and forget them.
+     * <p>
+     * With [cursor, limit], send the next limit items after cursor (null for
+     * the first page) without removing anything. The page carries the
+     * "cursor" of its last item, to fetch the next page and to acknowledge
+     * the items with ackSharedData, and "hasMore".
+     */
     public boolean fetchSharedData(final JSONArray data, final CallbackContext context) {
         log(DEBUG, "fetchSharedData() " + data);
-        if (data.length() != 0) {
+        if (data.length() != 0 && data.length() != 2) {
             log(WARN, "fetchSharedData() -> invalidAction");
             return false;
         }
+        final boolean paged = data.length() == 2;
+        final long[] cursor = paged ? parseCursor(data.optString(0, null)) : null;
+        if (paged && cursor == null) {
+            log(WARN, "fetchSharedData() -> invalid cursor");
+            context.error("invalid cursor");
+            return true;
+        }
+        final int limit = paged && data.optInt(1, 0) > 0 ? data.optInt(1, 0) : DEFAULT_PAGE_SIZE;
+
+        // Queued behind any in-flight ingestion, so the share is complete when read
+        final boolean queued = runOnIngestExecutor(new Runnable() {
+            @Override
+            public void run() {
+                processPendingIntents();
+                final long start = IngestMetrics.start();
+                if (paged) {
+                    sendSharedDataPage(cursor, limit, context);
+                    IngestMetrics.record(IngestMetrics.FETCH, start);
+                    return;
+                }
+                JSONObject sharedData = drainSharedData();
+                if (sharedData != null) {
+                    // Shares saved by a previous process are not known yet
+                    sharedItems.register(sharedData.optJSONArray("items"));
+                    releaseCachedFiles(sharedData.optJSONArray("items"));
+                    sendManifest(context, sharedData);
+                } else {
+                    PluginResultSender.ok(context);
+                }
+                IngestMetrics.record(IngestMetrics.FETCH, start);
+            }
+        });
+        if (!queued) {
+            context.error("destroyed");
+        }
+        return true;
+    }
+
+    private void sendSharedDataPage(final long[] cursor, final int limit, final CallbackContext context) {
+        final List<JSONObject> pageRecords = new ArrayList<>();
+        long lastSeq = cursor[0];
+        long lastIndex = cursor[1];
+        int count = 0;
+        boolean hasMore = false;
+        try {
+            // Enough records for the page and the items of the cursor record before it
+            final long skipped = Math.max(0, cursor[1] + 1);
+            for (JSONObject record : shareJournal.readFrom(cursor[0], limit + skipped)) {
+                final long seq = record.optLong("seq", -1);
+                final int offset = record.optInt("offset", 0);
+                final JSONArray items = record.optJSONArray("items");
+                if (items == null || seq < cursor[0]) {
+                    continue;
+                }
+                final JSONArray pageItems = new JSONArray();
+                for (int i = 0; i < items.length(); i++) {
+                    final int index = offset + i;
+                    if (seq == cursor[0] && index <= cursor[1]) {
+                        continue;
+                    }
+                    if (count == limit) {
+                        hasMore = true;
+                        break;
+                    }
+                    pageItems.put(items.get(i));
+                    lastSeq = seq;
+                    lastIndex = index;
+                    count++;
+                }
+                if (pageItems.length() > 0) {
+                    record.put("items", pageItems);
+                    pageRecords.add(record);
+                }
+                if (hasMore) {
+                    break;
+                }
+            }
+
+            JSONObject page = mergeRecords(pageRecords);
+            if (page == null) {
+                page = new JSONObject();
+                page.put("items", new JSONArray());
+                page.put("receivedCounts", 0);
+                page.put("maxAttachmentCount", this.maxAttachmentCount);
+            }
+            page.put("cursor", lastSeq < 0 ? JSONObject.NULL : lastSeq + ":" + lastIndex);
+            page.put("hasMore", hasMore);
+            // Shares saved by a previous process are not known yet
+            sharedItems.register(page.optJSONArray("items"));
+            sendManifest(context, page);
+            log(DEBUG, "fetchSharedData() -> " + count + " items");
+        } catch (JSONException e) {
+            log(ERROR, "Error paging shared data: " + e.getMessage());
+            context.error(String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * Keep the callback to push shares as soon as they are ingested.
+     * <p>
+     * Sends {"event": "share", "share": share, "cursor": cursor} for each share,
+     * preceded by {"event": "metadataReady", "item": item} and
+     * {"event": "bytesReady", "item": item} (or "itemFailed" with a "reason")
+     * for each of its items. Pushed shares stay pending until fetched or
+     * acknowledged with ackSharedData. A new subscription replaces the previous one.
+     */
+    public boolean subscribe(final JSONArray data, final CallbackContext context) {
+        log(DEBUG, "subscribe() " + data);
+        if (data.length() != 0) {
+            log(WARN, "subscribe() -> invalidAction");
+            return false;
+        }
+        subscriber = context;
+        return PluginResultSender.noResult(context, true);
+    }
+
+    private void pushItemEvent(final String event, final JSONObject item, final String reason) {
+        final CallbackContext context = subscriber;
+        if (context == null) {
+            return;
+        }
+        try {
+            final JSONObject message = new JSONObject();
+            message.put("event", event);
+            message.put("item", item);
+            if (reason != null) {
+                message.put("reason", reason);
+            }
+            PluginResultSender.event(context, message, true);
+        } catch (JSONException e) {
+            //
+        }
+    }
 
-        JSONObject sharedData = getSharedData();
-        this.removeSharedData();
-        if (sharedData != null) {
+    /**
+     * Push a share appended to the journal, with the cursor acknowledging it.
+     */
+    private void pushShare(final JSONObject share) {
+        final CallbackContext context = subscriber;
+        if (context == null) {
+            return;
+        }
+        try {
+            final JSONArray items = share.optJSONArray("items");
+            final int count = items == null ? 0 : items.length();
+            final JSONObject message = new JSONObject();
+            message.put("event", "share");
+            message.put("share", mergeIntends(share, null));
+            message.put("cursor", count > 0 && share.has("seq")
+                    ? share.getLong("seq") + ":" + (share.optInt("offset", 0) + count - 1)
+                    : JSONObject.NULL);
+            PluginResultSender.event(context, message, true);
+        } catch (JSONException e) {
+            //
+        }
+    }
 
-            final PluginResult result = new PluginResult(PluginResult.Status.OK, sharedData);
+    /**
+     * Send a share, or a page of shares, in the format chosen by javascript.
+     */
+    private void sendManifest(final CallbackContext context, final JSONObject sharedData) {
+        if (binaryManifests) {
+            try {
+                PluginResultSender.chunk(context, ManifestCodec.encode(sharedData), false);
+                return;
+            } catch (IOException e) {
+                log(WARN, "Sending shared data as JSON: " + e.getMessage());
+            }
+        }
+        context.sendPluginResult(new PluginResult(PluginResult.Status.OK, sharedData));
+    }
 
-            context.sendPluginResult(result);
+    /**
+     * Forget the pending items up to a cursor returned by fetchSharedData, args are [cursor].
+     */
+    public boolean ackSharedData(final JSONArray data, final CallbackContext context) {
+        log(DEBUG, "ackSharedData() " + data);
+        if (data.length() != 1) {
+            log(WARN, "ackSharedData() -> invalidAction");
+            return false;
+        }
+        final long[] cursor = parseCursor(data.optString(0, null));
+        if (cursor == null || cursor[0] < 0) {
+            log(WARN, "ackSharedData() -> invalid cursor");
+            context.error("invalid cursor");
             return true;
-        } else {
+        }
+        final boolean queued = runOnIngestExecutor(new Runnable() {
+            @Override
+            public void run() {
+                processPendingIntents();
+                final List<JSONObject> removed = shareJournal.ack(cursor[0], (int) cursor[1]);
+                releaseCachedFiles(new JSONArray(removed));
+                log(DEBUG, "ackSharedData() -> " + removed.size() + " items");
+                PluginResultSender.ok(context);
+            }
+        });
+        if (!queued) {
+            context.error("destroyed");
+        }
+        return true;
+    }
+
+    /**
+     * Copy an item before the others of its share, args are [itemId].
+     * <p>
+     * Sends {"found": false} when the item is not waiting for, nor running, its copy.
+     */
+    public boolean prioritize(final JSONArray data, final CallbackContext context) {
+        log(DEBUG, "prioritize() " + data);
+        if (data.length() != 1 || data.optString(0).isEmpty()) {
+            log(WARN, "prioritize() -> invalidAction");
+            return false;
+        }
+        return sendFound(context, CopyScheduler.prioritize(data.optString(0)));
+    }
+
+    /**
+     * Drop an item before, or while, its content is copied, args are [itemId].
+     * <p>
+     * The item is then reported as failed with the reason "cancelled". Sends
+     * {"found": false} when the item is not waiting for, nor running, its copy.
+     */
+    public boolean cancel(final JSONArray data, final CallbackContext context) {
+        log(DEBUG, "cancel() " + data);
+        if (data.length() != 1 || data.optString(0).isEmpty()) {
+            log(WARN, "cancel() -> invalidAction");
+            return false;
+        }
+        return sendFound(context, CopyScheduler.cancel(data.optString(0)));
+    }
+
+    private boolean sendFound(final CallbackContext context, final boolean found) {
+        try {
+            final JSONObject result = new JSONObject();
+            result.put("found", found);
+            return PluginResultSender.event(context, result, false);
+        } catch (JSONException e) {
+            context.error(e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Parse a "seq:index" cursor, null or "null" is the start of the journal.
+     *
+     * @return {seq, index}, null when the cursor is invalid
+     */
+    private static long[] parseCursor(final String cursor) {
+        if (cursor == null || cursor.isEmpty() || "null".equals(cursor)) {
+            return new long[]{-1, -1};
+        }
+        final int colon = cursor.indexOf(':');
+        if (colon < 0) {
+            return null;
+        }
+        try {
+            return new long[]{
+                    Long.parseLong(cursor.substring(0, colon)),
+                    Integer.parseInt(cursor.substring(colon + 1))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Export the ingestion timings, args are [withTraces, reset].
+     * <p>
+     * Timings are only collected with the OPEN_WITH_METRICS meta-data.
+     */
+    public boolean getMetrics(final JSONArray data, final CallbackContext context) {
+        log(DEBUG, "getMetrics() " + data);
+        if (data.length() > 2) {
+            log(WARN, "getMetrics() -> invalidAction");
+            return false;
+        }
+        try {
+            final JSONObject metrics = IngestMetrics.snapshot(data.optBoolean(0, false));
+            if (data.optBoolean(1, false)) {
+                IngestMetrics.reset();
+            }
+            return PluginResultSender.event(context, metrics, false);
+        } catch (JSONException e) {
+            log(WARN, "getMetrics() -> " + e.getMessage());
+            context.error(e.getMessage());
+            return true;
+        }
+    }
+
+
+    /**
+     * Stream the content of an item as binary messages of chunkSize bytes.
+     * <p>
+     * Each chunk has to be acknowledged with ackChunk before the next one is sent,
+     * an empty chunk marks the end. Items not materialized yet are read straight
+     * from their uri.
+     */
+    public boolean readChunks(final JSONArray data, final CallbackContext context) {
+        log(DEBUG, "readChunks() " + data);
+        if (data.length() < 1 || data.length() > 2) {
+            log(WARN, "readChunks() -> invalidAction");
+            return false;
+        }
+        final String itemId = data.optString(0);
+        final int chunkSize = data.optInt(1, ChunkReader.DEFAULT_CHUNK_SIZE);
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                final JSONObject item = sharedItems.get(itemId);
+                if (item == null) {
+                    log(WARN, "readChunks() -> unknown item " + itemId);
+                    context.error("unknown item: " + itemId);
+                    return;
+                }
+                try {
+                    final ChunkReader reader = new ChunkReader(openItem(item), chunkSize, context);
+                    final ChunkReader previous = chunkReaders.put(itemId, reader);
+                    if (previous != null) {
+                        previous.abort("superseded by a new readChunks");
+                    }
+                    sendNextChunk(itemId, reader);
+                } catch (IOException e) {
+                    log(ERROR, "Error reading item " + itemId + ": " + e.getMessage());
+                    context.error(String.valueOf(e.getMessage()));
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Acknowledge the last chunk of an item, args are [itemId, continue].
+     * <p>
+     * The next chunk is sent to the readChunks callback, unless continue is false
+     * which stops the stream.
+     */
+    public boolean ackChunk(final JSONArray data, final CallbackContext context) {
+        if (data.length() < 1 || data.length() > 2) {
+            log(WARN, "ackChunk() -> invalidAction");
+            return false;
+        }
+        final String itemId = data.optString(0);
+        final boolean more = data.optBoolean(1, true);
+        final ChunkReader reader = chunkReaders.get(itemId);
+        if (reader == null) {
             return PluginResultSender.ok(context);
         }
+        if (!more) {
+            chunkReaders.remove(itemId, reader);
+            reader.close();
+            return PluginResultSender.ok(context);
+        }
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                sendNextChunk(itemId, reader);
+            }
+        });
+        return PluginResultSender.ok(context);
+    }
+
+    private void sendNextChunk(final String itemId, final ChunkReader reader) {
+        try {
+            if (!reader.sendNext()) {
+                chunkReaders.remove(itemId, reader);
+            }
+        } catch (IOException e) {
+            log(ERROR, "Error reading item " + itemId + ": " + e.getMessage());
+            chunkReaders.remove(itemId, reader);
+            reader.abort(String.valueOf(e.getMessage()));
+        }
+    }
+
+    private void closeChunkReaders() {
+        for (ChunkReader reader : chunkReaders.values()) {
+            reader.close();
+        }
+        chunkReaders.clear();
+    }
+
+    /**
+     * Open the content of an item, from its copy when it has one.
+     * <p>
+     * Compressed copies are decompressed while they are read.
+     */
+    private InputStream openItem(final JSONObject item) throws IOException {
+        final String path = item.optString("path");
+        if (!path.isEmpty()) {
+            return new FileInputStream(path);
+        }
+        final String compressedPath = item.optString("compressedPath");
+        if (!compressedPath.isEmpty()) {
+            try {
+                return ContentCompressor.open(new File(compressedPath));
+            } catch (FileNotFoundException e) {
+                // Decompressed for another share of the same content
+                return new FileInputStream(ContentCompressor.decompressedPath(compressedPath));
+            }
+        }
+        final InputStream in = this.cordova.getContext().getContentResolver().openInputStream(Uri.parse(item.optString("uri")));
+        if (in == null) {
+            throw new FileNotFoundException("cannot open " + item.optString("uri"));
+        }
+        return in;
+    }
+
+    /**
+     * Open the content of a shared item, read only, for other native plugins.
+     * <p>
+     * Sibling plugins find this one with webView.getPluginManager().getPlugin("OpenWithPlugin").
+     * The file behind "path" is opened in place: the copy in the share cache, or the
+     * shared file itself for file uris and resolved MediaStore paths. Compressed copies
+     * are decompressed first. Items without a readable path are opened through the
+     * content resolver. The caller owns the descriptor and has to close it.
+     *
+     * @param id "id" of an item fetched by, or pushed to, javascript
+     * @throws FileNotFoundException when the item is unknown or cannot be opened
+     */
+    public ParcelFileDescriptor openSharedItem(final String id) throws IOException {
+        final JSONObject item = sharedItems.get(id);
+        if (item == null) {
+            throw new FileNotFoundException("unknown item: " + id);
+        }
+        synchronized (item) {
+            try {
+                decompressItem(item);
+            } catch (JSONException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+        final String path = item.optString("path");
+        if (!path.isEmpty()) {
+            final File file = new File(path);
+            if (file.canRead()) {
+                return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            }
+        }
+        final ParcelFileDescriptor descriptor = this.cordova.getContext().getContentResolver()
+                .openFileDescriptor(Uri.parse(item.optString("uri")), "r");
+        if (descriptor == null) {
+            throw new FileNotFoundException("cannot open " + item.optString("uri"));
+        }
+        return descriptor;
+    }
+
+    /**
+     * Map the content of a shared item in memory, read only.
+     * <p>
+     * Same lookup as openSharedItem. The mapping stays valid once returned, no
+     * descriptor is left open. Content that cannot be mapped, like a pipe from a
+     * provider or a file over 2GB, throws and can still be read from openSharedItem.
+     *
+     * @param id "id" of an item fetched by, or pushed to, javascript
+     */
+    public MappedByteBuffer mapSharedItem(final String id) throws IOException {
+        final FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(openSharedItem(id));
+        try {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("item " + id + " is too large to be mapped: " + size + " bytes");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Delete every cached copy which no pending share refers to.
+     * <p>
+     * Sends {"freedBytes": n}.
+     */
+    public boolean purgeCache(final JSONArray data, final CallbackContext context) {
+        log(DEBUG, "purgeCache() " + data);
+        if (data.length() != 0) {
+            log(WARN, "purgeCache() -> invalidAction");
+            return false;
+        }
+        // On the ingestion executor, so no share is half-way to being saved
+        final boolean queued = runOnIngestExecutor(new Runnable() {
+            @Override
+            public void run() {
+                processPendingIntents();
+                try {
+                    final JSONObject result = new JSONObject();
+                    result.put("freedBytes", getShareCache().purge(getPendingPaths()));
+                    PluginResultSender.event(context, result, false);
+                    log(DEBUG, "purgeCache() -> ok");
+                } catch (JSONException e) {
+                    context.error(e.getMessage());
+                }
+            }
+        });
+        if (!queued) {
+            context.error("destroyed");
+        }
+        return true;
+    }
+
+    private ShareCache getShareCache() {
+        return ShareCache.get(this.cordova.getContext().getCacheDir());
+    }
+
+    /**
+     * Paths of the items saved but not fetched yet.
+     */
+    private Set<String> getPendingPaths() {
+        final Set<String> paths = new HashSet<>();
+        final JSONObject sharedData = getSharedData();
+        addPaths(paths, sharedData == null ? null : sharedData.optJSONArray("items"));
+        // Intents of the current coalescing window
+        synchronized (pendingIntents) {
+            for (JSONObject record : pendingIntents) {
+                addPaths(paths, record.optJSONArray("items"));
+            }
+        }
+        return paths;
+    }
+
+    private static void addPaths(final Set<String> paths, final JSONArray items) {
+        if (items == null) {
+            return;
+        }
+        for (int i = 0; i < items.length(); i++) {
+            final JSONObject item = items.optJSONObject(i);
+            if (item != null) {
+                paths.add(item.optString("path"));
+                if (item.has("compressedPath")) {
+                    paths.add(item.optString("compressedPath"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivered items are no longer pending, their copies may be evicted from the share cache.
+     */
+    private void releaseCachedFiles(final JSONArray items) {
+        if (items == null) {
+            return;
+        }
+        final ShareCache shareCache = getShareCache();
+        for (int i = 0; i < items.length(); i++) {
+            final JSONObject item = items.optJSONObject(i);
+            if (item != null && item.optBoolean("isTemp", false)) {
+                final String path = item.optString("path");
+                shareCache.release(path.isEmpty() ? item.optString("compressedPath") : path);
+            }
+        }
+        for (String copyPath : sharedItems.release(items)) {
+            shareCache.release(copyPath);
+        }
+    }
+
+    /**
+     * Copy the content of an item exported without its bytes.
+     * <p>
+     * Sends {"event": "progress", "bytes": n, "total": size} while copying,
+     * then {"event": "done", "item": item}.
+     */
+    public boolean materialize(final JSONArray data, final CallbackContext context) {
+        log(DEBUG, "materialize() " + data);
+        if (data.length() != 1) {
+            log(WARN, "materialize() -> invalidAction");
+            return false;
+        }
+        final String itemId = data.optString(0);
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                materializeItem(itemId, context);
+            }
+        });
+        return true;
+    }
+
+    private void materializeItem(final String itemId, final CallbackContext context) {
+        final JSONObject item = sharedItems.get(itemId);
+        if (item == null) {
+            log(WARN, "materialize() -> unknown item " + itemId);
+            context.error("unknown item: " + itemId);
+            return;
+        }
+
+        // Copies run on demand can be cancelled too
+        final CopyScheduler.Ticket ticket = CopyScheduler.register(itemId, item.optLong("size", -1));
+        try {
+            // Concurrent calls for the same item wait for the first copy
+            synchronized (item) {
+                decompressItem(item);
+                if (!item.optBoolean("materialized", true)) {
+                    final long total = item.optLong("size", -1);
+                    final File tmpDir = this.cordova.getContext().getCacheDir();
+                    // Pending items keep their copy until acknowledged, the journal does not know it
+                    final boolean retain = sharedItems.isPending(itemId);
+                    final StoredContent copied = PathUtil.materialize(
+                            this.cordova.getActivity().getApplicationContext(),
+                            Uri.parse(item.getString("uri")),
+                            item.getString("name"),
+                            total,
+                            item.optLong("lastModified", -1),
+                            tmpDir,
+                            ticket.listener(new CopyListener() {
+                                private long notified = 0;
+
+                                @Override
+                                public void onProgress(final long bytesCopied) {
+                                    if (bytesCopied - notified >= PROGRESS_STEP) {
+                                        notified = bytesCopied;
+                                        sendProgress(context, bytesCopied, total);
+                                    }
+                                }
+                            }),
+                            retain,
+                            null);
+                    // The content may be found compressed in the share cache
+                    final StoredContent stored = getShareCache().inflate(copied);
+                    if (retain && !sharedItems.putCopy(itemId, stored.path)) {
+                        // Acknowledged while copying
+                        getShareCache().release(stored.path);
+                    }
+                    item.put("path", stored.path);
+                    item.put("size", stored.size);
+                    item.put("digests", stored.digests);
+                    item.put("materialized", true);
+                }
+            }
+
+            final JSONObject done = new JSONObject();
+            done.put("event", "done");
+            done.put("item", item);
+            PluginResultSender.event(context, done, false);
+            log(DEBUG, "materialize() -> ok");
+        } catch (CopyScheduler.CancelledException e) {
+            log(DEBUG, "materialize() -> cancelled");
+            context.error("cancelled");
+        } catch (Exception e) {
+            log(ERROR, "Error materializing item " + itemId + ": " + e.getMessage());
+            context.error(String.valueOf(e.getMessage()));
+        } finally {
+            CopyScheduler.unregister(ticket);
+        }
+    }
 
+    /**
+     * Give an item kept compressed in the share cache its plain path. Must hold the item lock.
+     */
+    private void decompressItem(final JSONObject item) throws IOException, JSONException {
+        final String compressedPath = item.optString("compressedPath");
+        if (compressedPath.isEmpty()) {
+            return;
+        }
+        final StoredContent stored = getShareCache().inflate(new StoredContent(
+                ContentCompressor.decompressedPath(compressedPath),
+                item.optLong("size", -1),
+                item.optJSONObject("digests"),
+                compressedPath));
+        item.put("path", stored.path);
+        item.put("materialized", true);
+        item.remove("compressedPath");
     }
 
+    private void sendProgress(final CallbackContext context, final long bytes, final long total) {
+        try {
+            final JSONObject progress = new JSONObject();
+            progress.put("event", "progress");
+            progress.put("bytes", bytes);
+            progress.put("total", total);
+            PluginResultSender.event(context, progress, true);
+        } catch (JSONException e) {
+            //
+        }
+    }
 
     /**
      * This is called when a new intent is sent while the app is already opened.
      * <p>
      * We also call it manually with the cordova application intent when the plugin
      * is initialized (so all intents will be managed by this method).
+     * <p>
+     * Returns at once, the intent is ingested on the ingestion executor.
      */
     @Override
     public void onNewIntent(final Intent intent) {
-        log(DEBUG, "onNewIntent() " + intent.getAction());
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, "onNewIntent() " + intent.getAction());
+        }
+        runOnIngestExecutor(new Runnable() {
+            @Override
+            public void run() {
+                ingestIntent(intent);
+            }
+        });
+    }
+
+    /**
+     * Converts the intent (copying its content if needed) and persists it.
+     * <p>
+     * Must run on the ingestion executor.
+     */
+    private void ingestIntent(final Intent intent) {
+        if (isLoggable(DEBUG)) {
+            log(DEBUG, "ingestIntent() " + intent.getAction());
+        }
+        final long[] trace = IngestMetrics.beginTrace();
         final JSONObject json = toJSONObject(intent);
         if (json != null) {
-            pendingIntents.add(json);
+            sharedItems.register(json.optJSONArray("items"));
+            synchronized (pendingIntents) {
+                pendingIntents.add(json);
+            }
         }
-        processPendingIntents();
+        if (coalesceWindowMs <= 0) {
+            processPendingIntents();
+        } else if (json != null && pendingFlush == null) {
+            // The first intent of a burst opens the window, the next ones join it
+            try {
+                pendingFlush = ingestExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        processPendingIntents();
+                    }
+                }, coalesceWindowMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, nothing would run the window
+                processPendingIntents();
+            }
+        }
+        IngestMetrics.endTrace(intent.getAction(), trace);
     }
 
     /**
-     * When the handler is defined, call it with all attached files.
+     * Save the intents of the current coalescing window now, from any thread.
      */
-    private void processPendingIntents() {
-        log(DEBUG, "processPendingIntents()");
-        JSONObject jsonObject = getSharedData();
-        for (int i = 0; i < pendingIntents.size(); i++) {
-            jsonObject = mergeIntends((JSONObject) pendingIntents.get(i), jsonObject);
+    private void flushPendingIntents() {
+        runOnIngestExecutor(new Runnable() {
+            @Override
+            public void run() {
+                processPendingIntents();
+            }
+        });
+    }
+
+    /**
+     * Queue a task on the ingestion executor, from any thread.
+     *
+     * @return false when the executor was shut down by onDestroy, the task is dropped then
+     */
+    private boolean runOnIngestExecutor(final Runnable task) {
+        try {
+            ingestExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            log(WARN, "Ingestion stopped, task dropped: " + e.getMessage());
+            return false;
         }
-        pendingIntents.clear();
+    }
 
-        if (jsonObject != null) {
-            saveSharedData(jsonObject);
+    /**
+     * Append the converted intents to the share journal with a single write,
+     * then push them to the subscriber.
+     * <p>
+     * Records are merged only when they are read, see mergeIntends.
+     * Must run on the ingestion executor.
+     */
+    private void processPendingIntents() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        final List<JSONObject> records;
+        synchronized (pendingIntents) {
+            if (pendingIntents.isEmpty()) {
+                return;
+            }
+            records = new ArrayList<>(pendingIntents);
+        }
+        log(DEBUG, "processPendingIntents() " + records.size());
+        final long start = IngestMetrics.start();
+        try {
+            shareJournal.append(records);
+        } catch (IOException e) {
+            log(ERROR, "Error saving shared data: " + e.getMessage());
+        }
+        IngestMetrics.record(IngestMetrics.PERSIST, start);
+        // Removed once saved, so getPendingPaths always finds them somewhere
+        synchronized (pendingIntents) {
+            pendingIntents.subList(0, records.size()).clear();
+        }
+        for (JSONObject record : records) {
+            pushShare(record);
         }
     }
 
@@ -246,6 +1269,9 @@ public class OpenWithPlugin extends CordovaPlugin {
                 jsonObject.put("items", intent.getJSONArray("items"));
                 jsonObject.put("receivedCounts", intent.getInt("receivedCounts"));
                 jsonObject.put("maxAttachmentCount", this.maxAttachmentCount);
+                if (intent.has("rejectedItems")) {
+                    jsonObject.put("rejectedItems", intent.getJSONArray("rejectedItems"));
+                }
             } catch (Exception e) {
                 jsonObject = null;
             }
@@ -265,6 +1291,18 @@ public class OpenWithPlugin extends CordovaPlugin {
                     jsonObject.put("exit", intent.has("exit") ? intent.getBoolean("exit") : false);
                     jsonObject.put("receivedCounts", finalItems.length());
                     jsonObject.put("maxAttachmentCount", this.maxAttachmentCount);
+
+                    final JSONArray rejected = intent.optJSONArray("rejectedItems");
+                    if (rejected != null) {
+                        JSONArray finalRejected = jsonObject.optJSONArray("rejectedItems");
+                        if (finalRejected == null) {
+                            finalRejected = new JSONArray();
+                            jsonObject.put("rejectedItems", finalRejected);
+                        }
+                        for (int i = 0; i < rejected.length(); i++) {
+                            finalRejected.put(rejected.get(i));
+                        }
+                    }
                 }
             } catch (Exception e) {
                 //
@@ -290,48 +1328,58 @@ public class OpenWithPlugin extends CordovaPlugin {
         }
     }
 
-    private void saveSharedData(JSONObject sharedData) {
-        try {
-            SharedPreferences.Editor editor = this.prefs.edit();
-
-            editor.putString(SAVED_KEY, sharedData.toString());
-
-            editor.commit();
-
-        } catch (Exception e) {
-            //
-        }
+    /**
+     * Merge all pending shares, null if there are none.
+     */
+    private JSONObject getSharedData() {
+        return mergeRecords(shareJournal.read());
     }
 
-    private boolean removeSharedData() {
-        try {
-            SharedPreferences.Editor editor = this.prefs.edit();
-
-            editor.remove(SAVED_KEY);
-
-            editor.commit();
-            return true;
+    /**
+     * Merge all pending shares and remove them from the journal.
+     */
+    private JSONObject drainSharedData() {
+        return mergeRecords(shareJournal.drain());
+    }
 
-        } catch (Exception e) {
-            return false;
+    private JSONObject mergeRecords(final List<JSONObject> records) {
+        JSONObject jsonObject = null;
+        for (JSONObject record : records) {
+            jsonObject = mergeIntends(record, jsonObject);
         }
-
+        return jsonObject;
     }
 
-    private JSONObject getSharedData() {
+    /**
+     * Move a share saved in SharedPreferences by a previous version into the journal.
+     */
+    private void migrateSharedPreferences() {
         String savedData = this.prefs.getString(SAVED_KEY, null);
         if (savedData == null) {
-            return null;
+            return;
         }
 
-        JSONObject data = null;
         try {
-            data = new JSONObject(savedData);
-        } catch (Exception e) {
-            data = null;
+            shareJournal.append(new JSONObject(savedData));
+        } catch (JSONException e) {
+            log(WARN, "Dropping unreadable saved data: " + e.getMessage());
+        } catch (IOException e) {
+            // Kept for the next start, the journal cannot be written now
+            log(WARN, "Cannot migrate saved data: " + e.getMessage());
+            return;
         }
+        this.prefs.edit().remove(SAVED_KEY).apply();
+    }
 
-        return data;
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //
+        }
     }
 
 }
@@ -9,16 +9,39 @@ import android.os.Build;
 import android.os.Environment;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 class PathData {
     public String filePath;
     public Boolean isTemp;
     public String fileName;
+    /**
+     * Size in bytes as reported by the provider, -1 when unknown.
+     */
+    public long size = -1;
+    /**
+     * Last modification date in ms as reported by the provider, -1 when unknown.
+     */
+    public long lastModified = -1;
+    /**
+     * Mime type when it was resolved along with the path, null otherwise.
+     */
+    public String mimeType;
+    /**
+     * Digests computed while copying the content, null when it was not copied.
+     */
+    public JSONObject digests;
 
     public PathData(String filePath, String fileName, Boolean isTemp) {
         this.filePath = filePath;
@@ -31,13 +54,33 @@ class PathData {
         this.isTemp = false;
         int lastSlashIndex = filePath.lastIndexOf("/");
         this.fileName = filePath.substring(lastSlashIndex + 1);
+        final File file = new File(filePath);
+        this.size = file.length();
+        this.lastModified = file.lastModified() > 0 ? file.lastModified() : -1;
     }
 }
 
+/**
+ * Notified while bytes are copied out of a content uri.
+ */
+interface CopyListener {
+    void onProgress(long bytesCopied) throws IOException;
+}
+
 
 // https://stackoverflow.com/questions/13209494/how-to-get-the-full-file-path-from-uri
 class PathUtil {
     public static PathData getPath(final Context context, Uri uri, final File tmpDir) throws Exception {
+        return getPath(context, uri, tmpDir, true);
+    }
+
+    /**
+     * Resolve the path of an uri.
+     * <p>
+     * When materialize is false, content which has no path on the device is not
+     * copied: the returned PathData only carries its name and size, with a null filePath.
+     */
+    public static PathData getPath(final Context context, Uri uri, final File tmpDir, final boolean materialize) throws Exception {
         final boolean needToCheckUri = Build.VERSION.SDK_INT >= 19;
         String selection = null;
         String[] selectionArgs = null;
@@ -69,19 +112,50 @@ class PathUtil {
         }
         if ("content".equalsIgnoreCase(uri.getScheme())) {
             // https://stackoverflow.com/questions/20067508/get-real-path-from-uri-android-kitkat-new-storage-access-framework/20402190?noredirect=1#comment30507493_20402190
-            String[] projection = {MediaStore.Images.Media.DATA, MediaStore.Images.Media.DISPLAY_NAME};
+            // MediaStore dates are in seconds, documents ones in ms
+            final boolean media = MediaStore.AUTHORITY.equals(uri.getAuthority());
+            final String modifiedColumn = media
+                    ? MediaStore.MediaColumns.DATE_MODIFIED
+                    : DocumentsContract.Document.COLUMN_LAST_MODIFIED;
+            String[] projection = {MediaStore.Images.Media.DATA, MediaStore.Images.Media.DISPLAY_NAME, OpenableColumns.SIZE, modifiedColumn};
             Cursor cursor = null;
             try {
-                cursor = context.getContentResolver().query(uri, projection, selection, selectionArgs, null);
+                final long queryStart = IngestMetrics.start();
+                try {
+                    cursor = context.getContentResolver().query(uri, projection, selection, selectionArgs, null);
+                } catch (IllegalArgumentException e) {
+                    // Providers which do not know the date column may reject the whole projection
+                    projection = new String[]{MediaStore.Images.Media.DATA, MediaStore.Images.Media.DISPLAY_NAME, OpenableColumns.SIZE};
+                    cursor = context.getContentResolver().query(uri, projection, selection, selectionArgs, null);
+                }
+                IngestMetrics.record(IngestMetrics.PATH_QUERY, queryStart);
                 int dataIndex = cursor.getColumnIndex(MediaStore.Images.Media.DATA);
                 int nameIndex = cursor.getColumnIndex(MediaStore.Images.Media.DISPLAY_NAME);
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                int modifiedIndex = cursor.getColumnIndex(modifiedColumn);
                 cursor.moveToFirst();
                 if (dataIndex >= 0) {
                     return new PathData(cursor.getString(dataIndex));
                 } else if (nameIndex >= 0) {
                     final String displayName = cursor.getString(nameIndex);
-
-                    return new PathData(getFilePathFromContent(context, uri, displayName, tmpDir), displayName, true);
+                    final long size = sizeIndex >= 0 && !cursor.isNull(sizeIndex)
+                            ? cursor.getLong(sizeIndex)
+                            : -1;
+                    final long lastModified = modifiedIndex >= 0 && !cursor.isNull(modifiedIndex)
+                            ? cursor.getLong(modifiedIndex) * (media ? 1000 : 1)
+                            : -1;
+                    if (!materialize) {
+                        final PathData pathData = new PathData(null, displayName, true);
+                        pathData.size = size;
+                        pathData.lastModified = lastModified;
+                        return pathData;
+                    }
+                    final StoredContent stored = getFilePathFromContent(context, uri, displayName, size, lastModified, tmpDir, null, true, null);
+                    final PathData pathData = new PathData(stored.path, displayName, true);
+                    pathData.size = stored.size;
+                    pathData.lastModified = lastModified;
+                    pathData.digests = stored.digests;
+                    return pathData;
                 }
 
             } finally {
@@ -95,24 +169,182 @@ class PathUtil {
         return null;
     }
 
-    private static String getFilePathFromContent(final Context context, Uri uri, final String fileName, final File tmpDir) throws Exception {
-        InputStream inputStream = context.getContentResolver().openInputStream(uri);
-        File outputFile = new File(tmpDir, fileName);
-        outputFile.deleteOnExit();
-        outputFile.createNewFile();
+    /**
+     * Most ids bound to a single "_id IN (...)" query, below SQLite's variable limit.
+     */
+    private static final int MAX_BATCH_IDS = 500;
 
-        FileOutputStream outputStream = new FileOutputStream(outputFile, false);
+    /**
+     * Resolve the MediaStore backed uris of a share with one query per collection.
+     * <p>
+     * Media documents and MediaStore item uris are grouped by collection and each
+     * group is resolved with a single "_id IN (...)" query, instead of one query per uri.
+     * Uris missing from the result (other providers, rows without a path, failed
+     * queries) still have to go through getPath.
+     *
+     * @return the resolved paths, by input uri
+     */
+    public static Map<Uri, PathData> getMediaPaths(final Context context, final List<Uri> uris) {
+        // collection -> id -> input uris
+        final Map<Uri, Map<String, List<Uri>>> groups = new LinkedHashMap<>();
+        for (Uri uri : uris) {
+            if (uri == null) {
+                continue;
+            }
+            try {
+                final Uri[] collection = new Uri[1];
+                final String id = getMediaId(context, uri, collection);
+                if (id == null) {
+                    continue;
+                }
+                Map<String, List<Uri>> group = groups.get(collection[0]);
+                if (group == null) {
+                    group = new LinkedHashMap<>();
+                    groups.put(collection[0], group);
+                }
+                List<Uri> sameId = group.get(id);
+                if (sameId == null) {
+                    sameId = new ArrayList<>(1);
+                    group.put(id, sameId);
+                }
+                sameId.add(uri);
+            } catch (Exception e) {
+                //
+            }
+        }
 
-        int read;
-        byte[] bytes = new byte[1024 * 100];
-        while ((read = inputStream.read(bytes)) != -1) {
-            outputStream.write(bytes, 0, read);
+        final Map<Uri, PathData> result = new HashMap<>();
+        for (Map.Entry<Uri, Map<String, List<Uri>>> group : groups.entrySet()) {
+            final List<String> ids = new ArrayList<>(group.getValue().keySet());
+            for (int start = 0; start < ids.size(); start += MAX_BATCH_IDS) {
+                final List<String> batch = ids.subList(start, Math.min(ids.size(), start + MAX_BATCH_IDS));
+                queryMediaBatch(context, group.getKey(), batch, group.getValue(), result);
+            }
         }
+        return result;
+    }
 
-        inputStream.close();
-        outputStream.close();
+    /**
+     * Find the MediaStore collection and row id of an uri.
+     *
+     * @param collection receives the collection uri
+     * @return the row id, null when the uri is not backed by a MediaStore row
+     */
+    private static String getMediaId(final Context context, final Uri uri, final Uri[] collection) {
+        if (Build.VERSION.SDK_INT >= 19 && DocumentsContract.isDocumentUri(context, uri)) {
+            if (!isMediaDocument(uri)) {
+                return null;
+            }
+            final String[] split = DocumentsContract.getDocumentId(uri).split(":");
+            if ("image".equals(split[0])) {
+                collection[0] = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+            } else if ("video".equals(split[0])) {
+                collection[0] = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
+            } else if ("audio".equals(split[0])) {
+                collection[0] = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+            } else {
+                return null;
+            }
+            return split[1];
+        }
+        if ("content".equalsIgnoreCase(uri.getScheme()) && MediaStore.AUTHORITY.equals(uri.getAuthority())) {
+            // content://media/<volume>/<type>/media/<id>
+            final String id = uri.getLastPathSegment();
+            if (id == null || !id.matches("\\d+")) {
+                return null;
+            }
+            final String uriString = uri.toString();
+            collection[0] = Uri.parse(uriString.substring(0, uriString.lastIndexOf('/')));
+            return id;
+        }
+        return null;
+    }
+
+    private static void queryMediaBatch(
+            final Context context,
+            final Uri collection,
+            final List<String> ids,
+            final Map<String, List<Uri>> urisById,
+            final Map<Uri, PathData> result) {
+        final String[] projection = {
+                MediaStore.MediaColumns._ID,
+                MediaStore.MediaColumns.DATA,
+                MediaStore.MediaColumns.SIZE,
+                MediaStore.MediaColumns.MIME_TYPE,
+                MediaStore.MediaColumns.DATE_MODIFIED
+        };
+        final StringBuilder selection = new StringBuilder(MediaStore.MediaColumns._ID).append(" IN (");
+        for (int i = 0; i < ids.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
 
-        return outputFile.getAbsolutePath();
+        Cursor cursor = null;
+        try {
+            final long queryStart = IngestMetrics.start();
+            cursor = context.getContentResolver().query(collection, projection, selection.toString(), ids.toArray(new String[0]), null);
+            IngestMetrics.record(IngestMetrics.PATH_QUERY, queryStart);
+            if (cursor == null) {
+                return;
+            }
+            final int idIndex = cursor.getColumnIndex(MediaStore.MediaColumns._ID);
+            final int dataIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATA);
+            final int sizeIndex = cursor.getColumnIndex(MediaStore.MediaColumns.SIZE);
+            final int typeIndex = cursor.getColumnIndex(MediaStore.MediaColumns.MIME_TYPE);
+            final int modifiedIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+            if (idIndex < 0 || dataIndex < 0) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                final String filePath = cursor.getString(dataIndex);
+                final List<Uri> inputs = urisById.get(cursor.getString(idIndex));
+                if (filePath == null || filePath.isEmpty() || inputs == null) {
+                    continue;
+                }
+                final PathData pathData = new PathData(filePath);
+                if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) {
+                    pathData.size = cursor.getLong(sizeIndex);
+                }
+                if (typeIndex >= 0) {
+                    pathData.mimeType = cursor.getString(typeIndex);
+                }
+                if (modifiedIndex >= 0 && !cursor.isNull(modifiedIndex)) {
+                    // In seconds
+                    pathData.lastModified = cursor.getLong(modifiedIndex) * 1000;
+                }
+                for (Uri input : inputs) {
+                    result.put(input, pathData);
+                }
+            }
+        } catch (Exception e) {
+            // Left to getPath
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Copy the content of an uri previously resolved without materializing it.
+     *
+     * @param lastModified last modification date resolved with the uri, -1 if unknown
+     * @param retain true when the copy is referenced by a pending share
+     * @param compressType type of the content when it may be kept compressed, null to store it plain
+     * @return the copy
+     */
+    public static StoredContent materialize(final Context context, final Uri uri, final String fileName, final long size, final long lastModified, final File tmpDir, final CopyListener listener, final boolean retain, final String compressType) throws Exception {
+        return getFilePathFromContent(context, uri, fileName, size, lastModified, tmpDir, listener, retain, compressType);
+    }
+
+    /**
+     * Copy the content into the share cache, see ShareCache.
+     *
+     * @param retain true when the copy is referenced by a pending share
+     * @param compressType type of the content when it may be kept compressed, null to store it plain
+     */
+    private static StoredContent getFilePathFromContent(final Context context, Uri uri, final String fileName, final long size, final long lastModified, final File tmpDir, final CopyListener listener, final boolean retain, final String compressType) throws Exception {
+        return ShareCache.get(tmpDir).store(context, uri, fileName, size, lastModified, listener, retain, compressType);
     }
 
     /**
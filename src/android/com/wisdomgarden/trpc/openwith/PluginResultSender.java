@@ -2,6 +2,7 @@ package com.wisdomgarden.trpc.openwith;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.PluginResult;
+import org.json.JSONObject;
 
 /**
  * Helper methods to reduce the pain while calling javascript callbacks.
@@ -42,5 +43,32 @@ class PluginResultSender {
         context.sendPluginResult(result);
         return true;
     }
+
+    /**
+     * Send OK with a message, optionally keeping the callback
+     * for the next messages.
+     */
+    public static boolean event(
+            final CallbackContext context,
+            final JSONObject message,
+            final boolean keepCallback) {
+        final PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+        result.setKeepCallback(keepCallback);
+        context.sendPluginResult(result);
+        return true;
+    }
+
+    /**
+     * Send OK with binary data, received as an ArrayBuffer in javascript.
+     */
+    public static boolean chunk(
+            final CallbackContext context,
+            final byte[] data,
+            final boolean keepCallback) {
+        final PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+        result.setKeepCallback(keepCallback);
+        context.sendPluginResult(result);
+        return true;
+    }
 }
 // vim: ts=4:sw=4:et
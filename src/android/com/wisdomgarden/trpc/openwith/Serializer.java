@@ -12,8 +12,23 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 class SharedData {
@@ -26,6 +41,134 @@ class SharedData {
     }
 }
 
+/**
+ * Byte limits applied to the items of a single share, and the items they rejected.
+ * <p>
+ * Sizes are checked as reported by the provider, before anything is copied.
+ * Items of unknown size are accepted while the share is under its total, and
+ * checked against the limits once copied.
+ */
+class IngestBudget {
+    private final long maxItemBytes;
+    private final long maxTotalBytes;
+    private long totalBytes = 0;
+    private final JSONArray rejected = new JSONArray();
+
+    /**
+     * @param maxItemBytes  largest item accepted, 0 for no limit
+     * @param maxTotalBytes largest sum of item sizes accepted, 0 for no limit
+     */
+    IngestBudget(final long maxItemBytes, final long maxTotalBytes) {
+        this.maxItemBytes = maxItemBytes;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * Count an item towards the total.
+     *
+     * @param size size reported by the provider, -1 if unknown
+     * @return null when accepted, the reason of the rejection otherwise
+     */
+    synchronized String reserve(final long size) {
+        if (size < 0) {
+            return maxTotalBytes > 0 && totalBytes >= maxTotalBytes ? "maxTotalBytes" : null;
+        }
+        if (maxItemBytes > 0 && size > maxItemBytes) {
+            return "maxItemBytes";
+        }
+        if (maxTotalBytes > 0 && totalBytes + size > maxTotalBytes) {
+            return "maxTotalBytes";
+        }
+        totalBytes += size;
+        return null;
+    }
+
+    /**
+     * Give back a size counted by reserve, for an item finally left out.
+     */
+    synchronized void unreserve(final long size) {
+        totalBytes = Math.max(0, totalBytes - Math.max(0, size));
+    }
+
+    synchronized void reject(final Object uri, final String name, final long size, final String reason) {
+        try {
+            final JSONObject item = new JSONObject();
+            item.put("uri", uri == null ? "" : uri);
+            item.put("name", name == null ? JSONObject.NULL : name);
+            item.put("size", size);
+            item.put("reason", reason);
+            rejected.put(item);
+        } catch (JSONException e) {
+            //
+        }
+    }
+
+    synchronized JSONArray getRejected() {
+        return rejected;
+    }
+}
+
+/**
+ * Notified as the items of a share are converted, from the ingestion threads.
+ */
+interface ItemListener {
+    /**
+     * The type, name and size of the item are known, its content may still be copied.
+     */
+    void onMetadataReady(JSONObject item);
+
+    /**
+     * The content of the item was copied, or has a path on the device.
+     */
+    void onBytesReady(JSONObject item);
+
+    /**
+     * The item announced by onMetadataReady could not be copied and is dropped.
+     */
+    void onItemFailed(JSONObject item, String reason);
+
+    /**
+     * The thumbnail of an item is built, item only holds its "id" and "thumbnailPath".
+     * Called from the thumbnail threads, possibly before the content is copied.
+     */
+    void onThumbnailReady(JSONObject item);
+}
+
+/**
+ * An item of a share whose metadata is known, waiting for its content to be copied.
+ * <p>
+ * Items are prepared together, then copied in the order given by CopyScheduler.
+ */
+class PreparedItem {
+    /**
+     * The item, as announced by ItemListener.onMetadataReady
+     */
+    public final JSONObject json;
+    /**
+     * Scheduling of the copy, null when the item is already complete
+     */
+    public final CopyScheduler.Ticket ticket;
+
+    public Context context;
+    public Uri uri;
+    public File tmpDir;
+    public IngestBudget budget;
+    public String type;
+    public PathData pathData;
+    public boolean scalable;
+    public boolean archive;
+    /**
+     * Size counted in the budget of the share so far
+     */
+    public long reserved = -1;
+    public Future<String> thumbnail;
+
+    public PreparedItem(final JSONObject json, final CopyScheduler.Ticket ticket) {
+        this.json = json;
+        this.ticket = ticket;
+    }
+}
+
 /**
  * Handle serialization of Android objects ready to be sent to javascript.
  */
@@ -36,6 +179,104 @@ class Serializer {
         MAX_ATTACHMENT_COUNT = maxAttachmentCount;
     }
 
+    /**
+     * When true, content without a path on the device is not copied during
+     * ingestion, only its metadata is exported. See OpenWithPlugin.materialize.
+     */
+    private static boolean LAZY_MATERIALIZATION = false;
+
+    public static void setLazyMaterialization(boolean lazyMaterialization) {
+        LAZY_MATERIALIZATION = lazyMaterialization;
+    }
+
+    /**
+     * Longest text, in chars, put inline in an item. Longer texts are written
+     * to the share cache and exported by path, 0 keeps every text inline.
+     */
+    private static int MAX_INLINE_TEXT = OpenWithPlugin.DEFAULT_MAX_INLINE_TEXT;
+
+    public static void setMaxInlineText(int maxInlineText) {
+        MAX_INLINE_TEXT = Math.max(0, maxInlineText);
+    }
+
+    /**
+     * Chars written at once when a text is spilled to a file
+     */
+    private static final int TEXT_CHUNK_SIZE = 8192;
+
+    /**
+     * Byte limits of a share, 0 for none, see IngestBudget.
+     */
+    private static long MAX_ITEM_BYTES = 0;
+    private static long MAX_TOTAL_BYTES = 0;
+
+    public static void setByteLimits(long maxItemBytes, long maxTotalBytes) {
+        MAX_ITEM_BYTES = Math.max(0, maxItemBytes);
+        MAX_TOTAL_BYTES = Math.max(0, maxTotalBytes);
+    }
+
+    /**
+     * Key of the items an expanded archive is replaced by, flattened into the share by addItem.
+     */
+    private static final String ARCHIVE_ENTRIES = "archiveEntries";
+
+    private static ItemListener itemListener = null;
+
+    public static synchronized void setItemListener(ItemListener listener) {
+        itemListener = listener;
+    }
+
+    private static synchronized ItemListener getItemListener() {
+        return itemListener;
+    }
+
+    /**
+     * Pool used to resolve and copy the items of a share concurrently,
+     * null when items are handled one at a time.
+     */
+    private static volatile ThreadPoolExecutor ingestPool = null;
+
+    private static volatile int INGEST_PARALLELISM = OpenWithPlugin.DEFAULT_INGEST_PARALLELISM;
+
+    /**
+     * Seconds an idle ingest thread is kept.
+     */
+    private static final long INGEST_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Set how many items of a single share may be materialized at the same time.
+     * <p>
+     * 1 (the default) keeps the sequential behaviour. A pool replaced by a new
+     * setting is not shut down, a share being ingested by another plugin
+     * instance may still submit to it: its threads end once idle.
+     */
+    public static synchronized void setIngestParallelism(int ingestParallelism) {
+        INGEST_PARALLELISM = Math.max(1, ingestParallelism);
+        if (INGEST_PARALLELISM == 1) {
+            ingestPool = null;
+        } else if (ingestPool == null || ingestPool.getCorePoolSize() != INGEST_PARALLELISM) {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    INGEST_PARALLELISM, INGEST_PARALLELISM,
+                    INGEST_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            pool.allowCoreThreadTimeOut(true);
+            ingestPool = pool;
+        }
+    }
+
+    /**
+     * Submit a task to the ingest pool, or run it on the calling thread when the pool refuses it.
+     */
+    private static <T> Future<T> submit(final ExecutorService pool, final Callable<T> task) {
+        try {
+            return pool.submit(task);
+        } catch (RejectedExecutionException e) {
+            final FutureTask<T> future = new FutureTask<>(task);
+            future.run();
+            return future;
+        }
+    }
+
     /**
      * Convert an intent to JSON.
      * <p>
@@ -48,35 +289,56 @@ class Serializer {
             final Intent intent,
             final File tmpDir)
             throws JSONException {
+        final long start = IngestMetrics.start();
+        final IngestBudget budget = new IngestBudget(MAX_ITEM_BYTES, MAX_TOTAL_BYTES);
         SharedData sharedData = null;
         try {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                sharedData = itemsFromClipData(context, intent.getClipData(), tmpDir);
+                sharedData = itemsFromClipData(context, intent.getClipData(), tmpDir, budget);
             }
-            if (sharedData == null || sharedData.items == null || sharedData.items.length() == 0) {
-                sharedData = itemsFromExtras(context, intent.getExtras(), tmpDir);
+            if (isEmpty(sharedData, budget)) {
+                sharedData = itemsFromExtras(context, intent.getExtras(), tmpDir, budget);
             }
-            if (sharedData == null || sharedData.items == null || sharedData.items.length() == 0) {
-                sharedData = itemsFromData(context, intent.getData(), tmpDir);
+            if (isEmpty(sharedData, budget)) {
+                sharedData = itemsFromData(context, intent.getData(), tmpDir, budget);
             }
         } catch (Exception e) {
             sharedData = null;
         }
+        if (sharedData == null && budget.getRejected().length() > 0) {
+            // Every item was rejected, the share is still reported
+            sharedData = new SharedData(budget.getRejected().length(), new JSONArray());
+        }
 
         if (sharedData == null) {
+            IngestMetrics.record(IngestMetrics.INTENT_PARSE, start);
             return null;
         }
 
+        final long buildStart = IngestMetrics.start();
         final JSONObject action = new JSONObject();
         action.put("action", translateAction(intent.getAction()));
         action.put("exit", readExitOnSent(intent.getExtras()));
         action.put("items", sharedData.items);
         action.put("receivedCounts", sharedData.receivedCounts);
         action.put("maxAttachmentCount", MAX_ATTACHMENT_COUNT);
+        if (budget.getRejected().length() > 0) {
+            action.put("rejectedItems", budget.getRejected());
+        }
+        IngestMetrics.record(IngestMetrics.JSON_BUILD, buildStart);
 
+        IngestMetrics.record(IngestMetrics.INTENT_PARSE, start);
         return action;
     }
 
+    /**
+     * Nothing found yet: no items, and none rejected.
+     */
+    private static boolean isEmpty(final SharedData sharedData, final IngestBudget budget) {
+        return (sharedData == null || sharedData.items == null || sharedData.items.length() == 0)
+                && budget.getRejected().length() == 0;
+    }
+
     public static String translateAction(final String action) {
         if ("android.intent.action.SEND".equals(action) ||
                 "android.intent.action.SEND_MULTIPLE".equals(action)) {
@@ -107,43 +369,52 @@ class Serializer {
     public static SharedData itemsFromClipData(
             final Context context,
             final ClipData clipData,
-            final File tmpDir) throws JSONException {
+            final File tmpDir,
+            final IngestBudget budget) throws JSONException {
         if (clipData == null) {
             return null;
         }
 
         final int clipItemCount = clipData.getItemCount();
-        JSONObject[] items = new JSONObject[clipItemCount];
+        final List<Uri> uris = new ArrayList<>(clipItemCount);
+        for (int i = 0; i < clipItemCount; i++) {
+            uris.add(clipData.getItemAt(i).getUri());
+        }
+        final Map<Uri, PathData> mediaPaths = getMediaPaths(context, uris);
+
+        List<Callable<PreparedItem>> tasks = new ArrayList<>(clipItemCount);
         for (int i = 0; i < clipItemCount; i++) {
-            Uri uri = clipData.getItemAt(i).getUri();
+            final ClipData.Item clipItem = clipData.getItemAt(i);
+            final Uri uri = uris.get(i);
 
             if (uri != null) {
-                items[i] = toJSONObject(context, uri, tmpDir);
+                tasks.add(uriTask(context, uri, tmpDir, mediaPaths.get(uri), budget));
             } else {
-                // process share plain text not file
-                String text = clipData.getItemAt(i).getText().toString();
-                final JSONObject json = new JSONObject();
-                json.put("type", "text/plain");
-                json.put("uri", "");
-                json.put("path", "");
-                json.put("text", text);
-                json.put("name", "text");
-
-                items[i] = json;
+                tasks.add(new Callable<PreparedItem>() {
+                    @Override
+                    public PreparedItem call() throws JSONException {
+                        // process share plain text not file
+                        CharSequence text = clipItem.getText();
+                        String type = "text/plain";
+                        if (text == null && clipItem.getHtmlText() != null) {
+                            text = clipItem.getHtmlText();
+                            type = "text/html";
+                        }
+                        if (text == null) {
+                            return null;
+                        }
+                        // Texts count towards the share as files do, inline or not
+                        if (reject(budget, null, "text", utf8Length(text)) != null) {
+                            return null;
+                        }
+                        return new PreparedItem(textToJSONObject(text, type, tmpDir), null);
+                    }
+                });
             }
 
         }
 
-        List<JSONObject> filteredList = new ArrayList<>();
-        for (int i = 0; i < items.length; i++) {
-            if (items[i] != null) {
-                filteredList.add(items[i]);
-                if (filteredList.size() >= MAX_ATTACHMENT_COUNT) {
-                    break;
-                }
-            }
-        }
-        return new SharedData(clipItemCount, new JSONArray(filteredList));
+        return new SharedData(clipItemCount, new JSONArray(collectItems(tasks, uris, tmpDir, budget)));
     }
 
 
@@ -155,7 +426,8 @@ class Serializer {
     public static SharedData itemsFromExtras(
             final Context context,
             final Bundle extras,
-            final File tmpDir) throws JSONException {
+            final File tmpDir,
+            final IngestBudget budget) throws JSONException {
 
         if (extras == null) {
             return null;
@@ -171,19 +443,231 @@ class Serializer {
             uris.add((Uri) extras.get(Intent.EXTRA_STREAM));
         }
 
-        List<JSONObject> filteredList = new ArrayList<>();
-
+        final Map<Uri, PathData> mediaPaths = getMediaPaths(context, uris);
+        List<Callable<PreparedItem>> tasks = new ArrayList<>(uris.size());
         for (int i = 0; i < uris.size(); i++) {
-            Uri uri = uris.get(i);
-            JSONObject item = toJSONObject(context, uri, tmpDir);
-            if (item != null) {
-                filteredList.add(item);
-                if (filteredList.size() >= MAX_ATTACHMENT_COUNT) {
-                    break;
+            tasks.add(uriTask(context, uris.get(i), tmpDir, mediaPaths.get(uris.get(i)), budget));
+        }
+        return new SharedData(uris.size(), new JSONArray(collectItems(tasks, uris, tmpDir, budget)));
+    }
+
+    /**
+     * Resolve the MediaStore items of a multi-item share in batch, see PathUtil.getMediaPaths.
+     */
+    private static Map<Uri, PathData> getMediaPaths(
+            final Context context,
+            final List<Uri> uris) {
+        if (uris.size() < 2) {
+            return Collections.emptyMap();
+        }
+        return PathUtil.getMediaPaths(context, uris);
+    }
+
+    /**
+     * Run the item conversions and keep the first MAX_ATTACHMENT_COUNT non null results,
+     * in the original order.
+     * <p>
+     * Conversions run in windows never larger than the number of slots still to
+     * fill, so items past the limit are not copied. They are reported as rejected,
+     * uris holding the uri of each task. The items of a window are prepared first,
+     * concurrently with an ingest pool, then copied in CopyScheduler order.
+     * Expanded archives may still fill the remaining slots, see addItem.
+     */
+    private static List<JSONObject> collectItems(
+            final List<Callable<PreparedItem>> tasks,
+            final List<Uri> uris,
+            final File tmpDir,
+            final IngestBudget budget) throws JSONException {
+        final List<JSONObject> items = new ArrayList<>();
+        final ExecutorService pool = ingestPool;
+        int next = 0;
+        while (next < tasks.size() && items.size() < MAX_ATTACHMENT_COUNT) {
+            final int window = Math.min(tasks.size() - next, MAX_ATTACHMENT_COUNT - items.size());
+            final List<PreparedItem> prepared = new ArrayList<>(window);
+            if (pool == null) {
+                for (int i = 0; i < window; i++) {
+                    addPrepared(prepared, call(tasks.get(next + i)));
+                }
+            } else {
+                final List<Future<PreparedItem>> futures = new ArrayList<>(window);
+                for (int i = 0; i < window; i++) {
+                    futures.add(submit(pool, tasks.get(next + i)));
+                }
+                try {
+                    for (Future<PreparedItem> future : futures) {
+                        addPrepared(prepared, await(future));
+                    }
+                } finally {
+                    for (Future<PreparedItem> future : futures) {
+                        future.cancel(true);
+                    }
                 }
             }
+            next += window;
+            for (JSONObject item : finishAll(prepared)) {
+                addItem(items, item, tmpDir, budget);
+            }
+        }
+        for (int i = next; i < tasks.size(); i++) {
+            budget.reject(uris.get(i), null, -1, "maxCount");
+        }
+        return items;
+    }
+
+    private static void addPrepared(final List<PreparedItem> prepared, final PreparedItem item) {
+        if (item != null) {
+            prepared.add(item);
         }
-        return new SharedData(uris.size(), new JSONArray(filteredList));
+    }
+
+    /**
+     * Copy the content of prepared items, in CopyScheduler order, by as many
+     * workers as the ingest parallelism, then add the thumbnails built meanwhile.
+     *
+     * @return the items in the order of prepared, null for the items dropped
+     */
+    private static JSONObject[] finishAll(final List<PreparedItem> prepared) throws JSONException {
+        final JSONObject[] results = new JSONObject[prepared.size()];
+        final List<CopyScheduler.Ticket> waiting = new ArrayList<>();
+        for (int i = 0; i < prepared.size(); i++) {
+            final CopyScheduler.Ticket ticket = prepared.get(i).ticket;
+            if (ticket == null) {
+                results[i] = prepared.get(i).json;
+            } else {
+                ticket.order = i;
+                waiting.add(ticket);
+            }
+        }
+        final Callable<Void> worker = new Callable<Void>() {
+            @Override
+            public Void call() throws JSONException {
+                CopyScheduler.Ticket ticket;
+                while ((ticket = CopyScheduler.next(waiting)) != null) {
+                    results[ticket.order] = finish(prepared.get(ticket.order));
+                }
+                return null;
+            }
+        };
+
+        final ExecutorService pool = ingestPool;
+        final int workers = pool == null ? 1 : Math.min(INGEST_PARALLELISM, waiting.size());
+        if (workers <= 1) {
+            call(worker);
+        } else {
+            final List<Future<Void>> futures = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                futures.add(submit(pool, worker));
+            }
+            try {
+                for (Future<Void> future : futures) {
+                    await(future);
+                }
+            } finally {
+                for (Future<Void> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        // Thumbnails run next to the copies, they are usually built by now
+        final long deadline = ThumbnailCache.deadline();
+        for (int i = 0; i < results.length; i++) {
+            final Future<String> thumbnail = prepared.get(i).thumbnail;
+            if (thumbnail == null) {
+                continue;
+            }
+            if (results[i] == null) {
+                thumbnail.cancel(true);
+                continue;
+            }
+            final String thumbnailPath = ThumbnailCache.await(thumbnail, deadline);
+            if (thumbnailPath != null) {
+                results[i].put("thumbnailPath", thumbnailPath);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Add an item, or the entries of an expanded archive, while slots remain.
+     * <p>
+     * Items past MAX_ATTACHMENT_COUNT are already copied: their copy is
+     * released, their size given back to the share, and they are rejected
+     * with "maxCount".
+     */
+    private static void addItem(
+            final List<JSONObject> items,
+            final JSONObject item,
+            final File tmpDir,
+            final IngestBudget budget) {
+        if (item == null) {
+            return;
+        }
+        final JSONArray entries = item.optJSONArray(ARCHIVE_ENTRIES);
+        if (entries == null) {
+            addOrDrop(items, item, tmpDir, budget);
+            return;
+        }
+        for (int i = 0; i < entries.length(); i++) {
+            addOrDrop(items, entries.optJSONObject(i), tmpDir, budget);
+        }
+    }
+
+    private static void addOrDrop(
+            final List<JSONObject> items,
+            final JSONObject item,
+            final File tmpDir,
+            final IngestBudget budget) {
+        if (items.size() < MAX_ATTACHMENT_COUNT) {
+            items.add(item);
+            return;
+        }
+        if (item.optBoolean("isTemp", false)) {
+            final String path = item.optString("path");
+            ShareCache.get(tmpDir).release(path.isEmpty() ? item.optString("compressedPath") : path);
+        }
+        final long size = item.has("text") ? utf8Length(item.optString("text")) : item.optLong("size", -1);
+        budget.unreserve(size);
+        budget.reject(item.opt("uri"), item.has("entryPath") ? item.optString("entryPath") : item.optString("name", null), size, "maxCount");
+        notifyFailed(getItemListener(), item, "maxCount");
+    }
+
+    private static <T> T call(final Callable<T> task) throws JSONException {
+        try {
+            return task.call();
+        } catch (JSONException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new JSONException(e.toString());
+        }
+    }
+
+    private static <T> T await(final Future<T> future) throws JSONException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JSONException("interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof JSONException) {
+                throw (JSONException) e.getCause();
+            }
+            throw new JSONException(String.valueOf(e.getCause()));
+        }
+    }
+
+    private static Callable<PreparedItem> uriTask(
+            final Context context,
+            final Uri uri,
+            final File tmpDir,
+            final PathData resolved,
+            final IngestBudget budget) {
+        return new Callable<PreparedItem>() {
+            @Override
+            public PreparedItem call() throws JSONException {
+                return prepare(context, uri, tmpDir, resolved, budget);
+            }
+        };
     }
 
     /**
@@ -194,55 +678,442 @@ class Serializer {
     public static SharedData itemsFromData(
             final Context context,
             final Uri uri,
-            final File tmpDir) throws JSONException {
+            final File tmpDir,
+            final IngestBudget budget) throws JSONException {
         if (uri == null) {
             return null;
         }
 
-        final JSONObject item = toJSONObject(context, uri, tmpDir);
-        if (item == null) {
+        final PreparedItem prepared = prepare(context, uri, tmpDir, null, budget);
+        if (prepared == null) {
             return null;
         }
-        final JSONObject[] items = new JSONObject[1];
-        items[0] = item;
-        return new SharedData(items.length, new JSONArray(items));
+        final List<JSONObject> items = new ArrayList<>(1);
+        addItem(items, finishAll(Collections.singletonList(prepared))[0], tmpDir, budget);
+        if (items.isEmpty()) {
+            return null;
+        }
+        return new SharedData(1, new JSONArray(items));
     }
 
     /**
      * Convert an Uri to JSON object.
      * <p>
      * Object will include:
+     * "id" to refer to the item in later plugin calls;
      * "type" of data;
      * "uri" itself;
-     * "path" to the file, if applicable.
+     * "path" to the file, if applicable;
+     * "size" in bytes, -1 when unknown;
+     * "lastModified" date in ms, -1 when unknown;
+     * "materialized", false when the content still has to be copied;
+     * "digests" of the copied content, by algorithm, see ContentDigests;
+     * "compressedPath" when the copy is kept compressed, see ContentCompressor.
+     * <p>
+     * ZIP archives are replaced by their entries when expansion is enabled, see expandArchive.
+     * <p>
+     * Downscaled images point to the smaller copy, along with its "width" and
+     * "height", and keep the "originalType", "originalPath" (empty when the
+     * original was not copied), "originalName" and "originalSize".
+     * Images and videos get a "thumbnailPath" when thumbnails are enabled, see ThumbnailCache.
+     * <p>
+     * resolved is the path found by a batch query, if any. Items over the
+     * limits of budget are rejected, before their content is copied.
+     * <p>
+     * Only the metadata is read here, see finish for the content.
      */
-    private static JSONObject toJSONObject(
+    private static PreparedItem prepare(
             final Context context,
             final Uri uri,
-            final File tmpDir)
+            final File tmpDir,
+            final PathData resolved,
+            final IngestBudget budget)
             throws JSONException {
         if (uri == null) {
             return null;
         }
         final JSONObject json = new JSONObject();
-        final String type = context.getContentResolver().getType(uri);
-        PathData pathData = null;
-        try {
-            pathData = PathUtil.getPath(context, uri, tmpDir);
-        } catch (Exception e) {
-            //
+        String type = resolved != null && resolved.mimeType != null
+                ? resolved.mimeType
+                : context.getContentResolver().getType(uri);
+        final boolean scalable = ImageScaler.isEnabled() && ImageScaler.accepts(type);
+        PathData pathData = resolved;
+        if (pathData == null) {
+            try {
+                // Metadata first, the content is copied below
+                pathData = PathUtil.getPath(context, uri, tmpDir, false);
+            } catch (Exception e) {
+                //
+            }
         }
 
         if (pathData == null) {
             return null;
         }
+        if (pathData.mimeType != null) {
+            type = pathData.mimeType;
+        }
+        final boolean archive = ZipExpander.isEnabled() && ZipExpander.accepts(type, pathData.fileName);
+        // Downscaled images and archives are checked once their final size is known
+        final boolean checked = !scalable && !archive;
+        if (checked && reject(budget, uri, pathData.fileName, pathData.size) != null) {
+            return null;
+        }
 
+        long buildStart = IngestMetrics.start();
+        json.put("id", newItemId());
         json.put("type", type);
         json.put("uri", uri);
-        json.put("path", pathData.filePath);
+        json.put("path", pathData.filePath == null ? "" : pathData.filePath);
         json.put("isTemp", pathData.isTemp);
         json.put("name", pathData.fileName);
+        json.put("size", pathData.size);
+        json.put("lastModified", pathData.lastModified);
+        json.put("materialized", pathData.filePath != null);
+        IngestMetrics.record(IngestMetrics.JSON_BUILD, buildStart);
+        final ItemListener listener = getItemListener();
+        // Expanded archives are announced by their entries
+        if (listener != null && !archive) {
+            listener.onMetadataReady(json);
+        }
+        // Built alongside the copy, announced on its own as soon as it is ready
+        final Future<String> thumbnail = ThumbnailCache.request(
+                context, uri, type, pathData.size, pathData.lastModified, tmpDir, thumbnailListener(listener, json.getString("id")));
+
+        final PreparedItem item = new PreparedItem(json, CopyScheduler.register(json.getString("id"), pathData.size));
+        item.context = context;
+        item.uri = uri;
+        item.tmpDir = tmpDir;
+        item.budget = budget;
+        item.type = type;
+        item.pathData = pathData;
+        item.scalable = scalable;
+        item.archive = archive;
+        item.reserved = checked ? pathData.size : -1;
+        item.thumbnail = thumbnail;
+        return item;
+    }
+
+    /**
+     * Copy the content of a prepared item, unless it was cancelled, see CopyScheduler.
+     *
+     * @return the complete item, null when it was dropped
+     */
+    private static JSONObject finish(final PreparedItem item) throws JSONException {
+        if (item.ticket == null) {
+            return item.json;
+        }
+        try {
+            return copyContent(item);
+        } finally {
+            CopyScheduler.unregister(item.ticket);
+        }
+    }
+
+    private static JSONObject copyContent(final PreparedItem item) throws JSONException {
+        final JSONObject json = item.json;
+        final Context context = item.context;
+        final Uri uri = item.uri;
+        final File tmpDir = item.tmpDir;
+        final IngestBudget budget = item.budget;
+        final String type = item.type;
+        final PathData pathData = item.pathData;
+        final boolean scalable = item.scalable;
+        final ItemListener listener = getItemListener();
+        if (item.ticket.isCancelled()) {
+            return cancelled(item, listener);
+        }
+        if (item.archive) {
+            final JSONObject archive = expandArchive(context, uri, pathData.fileName, tmpDir, budget, item.ticket);
+            if (archive != null) {
+                return archive;
+            }
+            if (item.ticket.isCancelled()) {
+                return cancelled(item, listener);
+            }
+            // Kept whole, checked and announced as any other item
+            if (reject(budget, uri, pathData.fileName, pathData.size) != null) {
+                return null;
+            }
+            item.reserved = pathData.size;
+            if (listener != null) {
+                listener.onMetadataReady(json);
+            }
+        }
+
+        ImageScaler.ScaledImage scaled = null;
+        if (scalable) {
+            // Images to downscale are decoded from the uri, never copied whole
+            try {
+                scaled = ImageScaler.scale(context, uri, pathData.fileName, tmpDir, true);
+            } catch (Exception e) {
+                //
+            }
+        }
+        if (scalable) {
+            final long size = scaled != null ? scaled.stored.size : pathData.size;
+            final String reason = reject(budget, uri, pathData.fileName, size);
+            if (reason != null) {
+                if (scaled != null) {
+                    ShareCache.get(tmpDir).release(scaled.stored.path);
+                }
+                notifyFailed(listener, json, reason);
+                return null;
+            }
+            item.reserved = size;
+        }
+        StoredContent stored = null;
+        if (scaled == null && pathData.filePath == null && !LAZY_MATERIALIZATION) {
+            try {
+                stored = PathUtil.materialize(context, uri, pathData.fileName, pathData.size, pathData.lastModified, tmpDir, item.ticket.listener(null), true, type);
+            } catch (CopyScheduler.CancelledException e) {
+                return cancelled(item, listener);
+            } catch (Exception e) {
+                budget.unreserve(item.reserved);
+                notifyFailed(listener, json, String.valueOf(e.getMessage()));
+                return null;
+            }
+            // The provider did not tell the size, this is only known now
+            final String reason = pathData.size < 0 ? reject(budget, uri, pathData.fileName, stored.size) : null;
+            if (reason != null) {
+                ShareCache.get(tmpDir).release(stored.path);
+                notifyFailed(listener, json, reason);
+                return null;
+            }
+            // New copies are deflated while copied, this only catches entries stored plain earlier
+            stored = ShareCache.get(tmpDir).compress(stored, type);
+        }
+        final long buildStart = IngestMetrics.start();
+        if (scaled != null) {
+            json.put("type", scaled.type);
+            json.put("path", scaled.stored.path);
+            json.put("isTemp", true);
+            json.put("name", scaled.fileName);
+            json.put("size", scaled.stored.size);
+            json.put("materialized", true);
+            json.put("digests", scaled.stored.digests);
+            json.put("width", scaled.width);
+            json.put("height", scaled.height);
+            json.put("originalType", type);
+            json.put("originalPath", pathData.filePath == null ? "" : pathData.filePath);
+            json.put("originalName", pathData.fileName);
+            json.put("originalSize", pathData.size);
+        } else if (stored != null) {
+            // Compressed copies only get a path once materialized
+            json.put("path", stored.compressedPath == null ? stored.path : "");
+            json.put("size", stored.size);
+            json.put("materialized", stored.compressedPath == null);
+            json.put("digests", stored.digests);
+            if (stored.compressedPath != null) {
+                json.put("compressedPath", stored.compressedPath);
+            }
+        }
+        IngestMetrics.record(IngestMetrics.JSON_BUILD, buildStart);
+        if (listener != null && (json.optBoolean("materialized") || json.has("compressedPath"))) {
+            listener.onBytesReady(json);
+        }
+
+        return json;
+    }
+
+    /**
+     * Convert a shared text to JSON.
+     * <p>
+     * Texts up to MAX_INLINE_TEXT chars are put in "text". Longer ones are
+     * written to the share cache, chunk by chunk so no String of the whole
+     * text is built, and exported like a copied file with their "textLength".
+     */
+    private static JSONObject textToJSONObject(
+            final CharSequence text,
+            final String type,
+            final File tmpDir) throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put("id", newItemId());
+        json.put("type", type);
+        json.put("uri", "");
+        json.put("path", "");
+        json.put("name", "text");
+        final int maxInlineText = MAX_INLINE_TEXT;
+        if (maxInlineText <= 0 || text.length() <= maxInlineText) {
+            json.put("text", text.toString());
+            return json;
+        }
 
+        final long start = IngestMetrics.start();
+        final ShareCache shareCache = ShareCache.get(tmpDir);
+        StoredContent stored;
+        try {
+            // Deflated while written when worth it, not read back afterwards
+            final ContentCompressor.Output output = shareCache.newOutput(type);
+            Writer writer = null;
+            try {
+                writer = new OutputStreamWriter(output, "UTF-8");
+                for (int i = 0; i < text.length(); i += TEXT_CHUNK_SIZE) {
+                    writer.append(text, i, Math.min(text.length(), i + TEXT_CHUNK_SIZE));
+                }
+                writer.close();
+                writer = null;
+            } catch (IOException e) {
+                try {
+                    if (writer != null) {
+                        writer.close();
+                    } else {
+                        output.close();
+                    }
+                } catch (IOException ignored) {
+                    //
+                }
+                output.getFile().delete();
+                throw e;
+            }
+            final String fileName = "text/html".equals(type) ? "text.html" : "text.txt";
+            stored = shareCache.adopt(output, fileName, true);
+            json.put("name", fileName);
+        } catch (IOException e) {
+            // Better a large inline text than none
+            json.put("text", text.toString());
+            return json;
+        } finally {
+            IngestMetrics.record(IngestMetrics.COPY, start);
+        }
+        json.put("path", stored.compressedPath == null ? stored.path : "");
+        json.put("isTemp", true);
+        json.put("size", stored.size);
+        json.put("materialized", stored.compressedPath == null);
+        json.put("digests", stored.digests);
+        if (stored.compressedPath != null) {
+            json.put("compressedPath", stored.compressedPath);
+        }
+        json.put("textLength", text.length());
         return json;
     }
+
+    /**
+     * Expand a ZIP archive into one item per file entry, see ZipExpander.
+     * <p>
+     * Entry items point to the archive "uri", and add the "archiveName" and the
+     * "entryPath" of the file in the archive.
+     *
+     * @return the items wrapped under ARCHIVE_ENTRIES, null when the archive is to be kept whole
+     */
+    private static JSONObject expandArchive(
+            final Context context,
+            final Uri uri,
+            final String archiveName,
+            final File tmpDir,
+            final IngestBudget budget,
+            final CopyScheduler.Ticket ticket) throws JSONException {
+        final List<ZipExpander.Entry> entries;
+        try {
+            entries = ZipExpander.expand(context, uri, tmpDir, budget, ticket.listener(null));
+        } catch (Exception e) {
+            return null;
+        }
+        final ItemListener listener = getItemListener();
+        final JSONArray items = new JSONArray();
+        for (ZipExpander.Entry entry : entries) {
+            final long buildStart = IngestMetrics.start();
+            final StoredContent stored = entry.stored;
+            final JSONObject json = new JSONObject();
+            json.put("id", newItemId());
+            json.put("type", entry.type);
+            json.put("uri", uri);
+            json.put("path", stored.compressedPath == null ? stored.path : "");
+            json.put("isTemp", true);
+            json.put("name", entry.name);
+            json.put("size", stored.size);
+            json.put("materialized", stored.compressedPath == null);
+            json.put("digests", stored.digests);
+            if (stored.compressedPath != null) {
+                json.put("compressedPath", stored.compressedPath);
+            }
+            json.put("archiveName", archiveName == null ? JSONObject.NULL : archiveName);
+            json.put("entryPath", entry.entryPath);
+            IngestMetrics.record(IngestMetrics.JSON_BUILD, buildStart);
+            if (listener != null) {
+                listener.onMetadataReady(json);
+                listener.onBytesReady(json);
+            }
+            items.put(json);
+        }
+        final JSONObject archive = new JSONObject();
+        archive.put(ARCHIVE_ENTRIES, items);
+        return archive;
+    }
+
+    /**
+     * Drop a cancelled item, giving its size back to the share.
+     */
+    private static JSONObject cancelled(final PreparedItem item, final ItemListener listener) {
+        item.budget.unreserve(item.reserved);
+        item.budget.reject(item.uri, item.pathData.fileName, item.pathData.size, "cancelled");
+        if (item.thumbnail != null) {
+            item.thumbnail.cancel(true);
+        }
+        notifyFailed(listener, item.json, "cancelled");
+        return null;
+    }
+
+    /**
+     * Check an item against the limits of its share, recording it when rejected.
+     *
+     * @return null when accepted, the reason of the rejection otherwise
+     */
+    private static String reject(final IngestBudget budget, final Uri uri, final String name, final long size) {
+        final String reason = budget.reserve(size);
+        if (reason != null) {
+            budget.reject(uri, name, size, reason);
+        }
+        return reason;
+    }
+
+    /**
+     * Bytes of text once encoded as UTF-8, without encoding it.
+     */
+    private static long utf8Length(final CharSequence text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static ThumbnailCache.Listener thumbnailListener(final ItemListener listener, final String itemId) {
+        if (listener == null) {
+            return null;
+        }
+        return new ThumbnailCache.Listener() {
+            @Override
+            public void onThumbnailReady(final String thumbnailPath) {
+                try {
+                    final JSONObject item = new JSONObject();
+                    item.put("id", itemId);
+                    item.put("thumbnailPath", thumbnailPath);
+                    listener.onThumbnailReady(item);
+                } catch (JSONException e) {
+                    //
+                }
+            }
+        };
+    }
+
+    private static void notifyFailed(final ItemListener listener, final JSONObject item, final String reason) {
+        if (listener != null) {
+            listener.onItemFailed(item, reason);
+        }
+    }
+
+    private static String newItemId() {
+        return UUID.randomUUID().toString();
+    }
 }
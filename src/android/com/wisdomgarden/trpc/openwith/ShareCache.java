@@ -0,0 +1,946 @@
+package com.wisdomgarden.trpc.openwith;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A file of the store, as returned to the caller of ShareCache.store.
+ */
+class StoredContent {
+    public final String path;
+    /**
+     * Bytes actually copied
+     */
+    public final long size;
+    /**
+     * Configured digests of the content, see ContentDigests
+     */
+    public final JSONObject digests;
+    /**
+     * File actually holding the content when it is kept compressed, null otherwise.
+     * Nothing is found at path until ShareCache.inflate is called.
+     */
+    public final String compressedPath;
+
+    public StoredContent(final String path, final long size, final JSONObject digests) {
+        this(path, size, digests, null);
+    }
+
+    public StoredContent(final String path, final long size, final JSONObject digests, final String compressedPath) {
+        this.path = path;
+        this.size = size;
+        this.digests = digests;
+        this.compressedPath = compressedPath;
+    }
+}
+
+/**
+ * Deduplicating store for the files copied out of content uris.
+ * <p>
+ * Each copy lives in "openwith/&lt;key&gt;/&lt;name&gt;" under the cache dir, so two
+ * different files with the same display name no longer overwrite each other.
+ * When the provider reports a size and a last modification date, the
+ * (uri, size, last-modified) triple is the key, and a repeated share is
+ * recognized without reading its bytes at all. Only when the integrator asks
+ * for SHA-256 digests, see ContentDigests, is the content key its SHA-256, so
+ * the same content shared from different uris is stored once.
+ * <p>
+ * Entries count the pending shares pointing to them, unreferenced entries
+ * are the only ones which may be deleted, least recently used first, when
+ * the store grows over its quota.
+ * <p>
+ * Entries of text-like content may be kept compressed: their file then has the
+ * ContentCompressor suffix until inflate restores it. Copies given a compressType
+ * and files written through newOutput are deflated while they are written,
+ * compress is only left for entries stored plain before.
+ * <p>
+ * Copies are written to a "&lt;key&gt;.part" file, with a "&lt;key&gt;.checkpoint"
+ * recording the source and the length safely written. A copy interrupted by
+ * the process being killed is resumed from there, by the next store of the
+ * same source or by resumeInterrupted, when the provider can seek.
+ */
+class ShareCache {
+
+    private static final String DIR_NAME = "openwith";
+    private static final String INDEX_NAME = "index.json";
+    private static final String TMP_PREFIX = "tmp-";
+    private static final String PART_SUFFIX = ".part";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    /**
+     * Age after which a temporary file is known to be left over by a dead process
+     */
+    private static final long STALE_TMP_MS = 60 * 60 * 1000;
+
+    private static ShareCache instance = null;
+
+    /**
+     * Get the store located in the given cache dir.
+     */
+    public static synchronized ShareCache get(final File cacheDir) {
+        if (instance == null || !instance.root.getParentFile().equals(cacheDir)) {
+            instance = new ShareCache(new File(cacheDir, DIR_NAME));
+        }
+        return instance;
+    }
+
+    private final File root;
+
+    /**
+     * part key -&gt; lock held while copying into that part file, only while in use
+     */
+    private final Map<String, CopyLock> copyLocks = new HashMap<>();
+
+    private static class CopyLock {
+        /**
+         * Threads holding or waiting for the lock
+         */
+        int users = 0;
+    }
+
+    /**
+     * content key -&gt; {"path", "size", "refs", "lastAccess", "digests"},
+     * with "compressed" and the "storedSize" on disk for compressed entries
+     */
+    private JSONObject entries = null;
+
+    /**
+     * source key (uri, size, last-modified) -&gt; content key
+     */
+    private JSONObject sources = null;
+
+    private ShareCache(final File root) {
+        this.root = root;
+    }
+
+    /**
+     * Copy the content of an uri into the store, unless it is already there.
+     * <p>
+     * The configured digests are computed during the copy, and kept in the
+     * index so a reused entry does not need to be read again.
+     *
+     * @param size         size reported by the provider, -1 if unknown
+     * @param lastModified last modification date reported by the provider, -1 if unknown
+     * @param retain       count a reference to the entry for a pending share
+     * @param compressType type of the content when it may be kept compressed, null to store it plain
+     * @return the stored file
+     */
+    public StoredContent store(
+            final Context context,
+            final Uri uri,
+            final String fileName,
+            final long size,
+            final long lastModified,
+            final CopyListener listener,
+            final boolean retain,
+            final String compressType) throws IOException {
+        final String[] algorithms = ContentDigests.getAlgorithms();
+        final String sourceKey = size >= 0 && lastModified > 0
+                ? uri + "|" + size + "|" + lastModified
+                : null;
+
+        synchronized (this) {
+            load();
+            if (sourceKey != null) {
+                final StoredContent stored = reuse(sources.optString(sourceKey, null), retain, algorithms);
+                if (stored != null) {
+                    return stored;
+                }
+            }
+        }
+
+        // The copy runs outside the store lock, items of a share may be copied concurrently.
+        // Copies of the same source are serialized, they share a part file.
+        final String partKey = partKey(sourceKey != null ? sourceKey : uri.toString());
+        final CopyLock lock = acquireCopyLock(partKey);
+        try {
+            synchronized (lock) {
+                if (sourceKey != null) {
+                    synchronized (this) {
+                        final StoredContent stored = reuse(sources.optString(sourceKey, null), retain, algorithms);
+                        if (stored != null) {
+                            return stored;
+                        }
+                    }
+                }
+                return copy(context, uri, fileName, size, lastModified, listener, retain, compressType, sourceKey, partKey, algorithms);
+            }
+        } finally {
+            releaseCopyLock(partKey, lock);
+        }
+    }
+
+    private StoredContent copy(
+            final Context context,
+            final Uri uri,
+            final String fileName,
+            final long size,
+            final long lastModified,
+            final CopyListener listener,
+            final boolean retain,
+            final String compressType,
+            final String sourceKey,
+            final String partKey,
+            final String[] algorithms) throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("cannot create " + root);
+        }
+        final File partFile = new File(root, partKey + PART_SUFFIX);
+        final File checkpointFile = new File(root, partKey + CHECKPOINT_SUFFIX);
+
+        // Only resume when the source is known not to have changed
+        long offset = 0;
+        final JSONObject checkpoint = readCheckpoint(checkpointFile);
+        if (sourceKey != null && checkpoint != null && partFile.isFile()
+                && uri.toString().equals(checkpoint.optString("uri"))
+                && size == checkpoint.optLong("size", -2)
+                && lastModified == checkpoint.optLong("lastModified", -2)) {
+            offset = Math.min(checkpoint.optLong("length", 0), partFile.length());
+        }
+
+        // Text-like content is deflated while copied, unless a plain copy can be resumed
+        final int level = ContentCompressor.getLevel();
+        if (offset == 0 && level > 0 && ContentCompressor.accepts(compressType)) {
+            checkpointFile.delete();
+            final ContentCompressor.Output output = new ContentCompressor.Output(partFile, level, new ContentDigests(algorithms));
+            try {
+                ContentCopier.copy(context, uri, output, listener);
+                output.close();
+            } catch (IOException e) {
+                closeQuietly(output);
+                partFile.delete();
+                throw e;
+            }
+            return insert(partFile, fileName, output.getLength(), output.getDigests().toJSON(),
+                    sourceKey, retain, algorithms, output.isCompressed());
+        }
+
+        ContentDigests digests = newDigests(algorithms);
+        long length;
+        try {
+            if (offset > 0) {
+                truncate(partFile, offset);
+                if (digests != null) {
+                    ContentCopier.digestFile(partFile, 0, digests);
+                }
+            }
+            if (sourceKey != null) {
+                writeCheckpoint(checkpointFile, uri, fileName, size, lastModified, offset);
+            }
+            // Without a known source, an interrupted copy cannot be trusted to resume
+            final ContentCopier.Checkpoint onCheckpoint = sourceKey == null ? null : new ContentCopier.Checkpoint() {
+                @Override
+                public void onCheckpoint(final long written) throws IOException {
+                    writeCheckpoint(checkpointFile, uri, fileName, size, lastModified, written);
+                }
+            };
+            try {
+                length = ContentCopier.copy(context, uri, partFile, listener, digests, offset, onCheckpoint);
+            } catch (ContentCopier.UnseekableSourceException e) {
+                // Restart from the beginning
+                digests = newDigests(algorithms);
+                length = ContentCopier.copy(context, uri, partFile, listener, digests, 0, onCheckpoint);
+            }
+        } catch (IOException e) {
+            // A cancelled item is not expected back, its part would never be resumed
+            if (sourceKey == null || e instanceof CopyScheduler.CancelledException) {
+                partFile.delete();
+                checkpointFile.delete();
+            }
+            throw e;
+        }
+        checkpointFile.delete();
+        return insert(partFile, fileName, length, digestValues(digests), sourceKey, retain, algorithms, false);
+    }
+
+    /**
+     * Finish the copies interrupted by the end of a previous process, and
+     * delete the files left over by copies which cannot be resumed.
+     * <p>
+     * Finished copies are not referenced, the share they belong to finds
+     * them by their source when it is ingested again.
+     *
+     * @return the number of copies finished
+     */
+    public int resumeInterrupted(final Context context) {
+        final File[] files = root.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int resumed = 0;
+        final long staleBefore = System.currentTimeMillis() - STALE_TMP_MS;
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(TMP_PREFIX) && file.lastModified() < staleBefore) {
+                file.delete();
+                continue;
+            }
+            if (!name.endsWith(CHECKPOINT_SUFFIX)) {
+                continue;
+            }
+            final String partKey = name.substring(0, name.length() - CHECKPOINT_SUFFIX.length());
+            final JSONObject checkpoint = readCheckpoint(file);
+            try {
+                if (checkpoint == null) {
+                    throw new IOException("unreadable checkpoint " + name);
+                }
+                store(context,
+                        Uri.parse(checkpoint.getString("uri")),
+                        checkpoint.optString("name", null),
+                        checkpoint.optLong("size", -1),
+                        checkpoint.optLong("lastModified", -1),
+                        null,
+                        false,
+                        null);
+                resumed++;
+            } catch (Exception e) {
+                // The grant to read the uri may be gone with the previous process
+                final CopyLock lock = acquireCopyLock(partKey);
+                try {
+                    synchronized (lock) {
+                        file.delete();
+                        new File(root, partKey + PART_SUFFIX).delete();
+                    }
+                } finally {
+                    releaseCopyLock(partKey, lock);
+                }
+            }
+        }
+        // Parts without checkpoint were never resumable
+        final File[] parts = root.listFiles();
+        for (int i = 0; parts != null && i < parts.length; i++) {
+            final String name = parts[i].getName();
+            if (name.endsWith(PART_SUFFIX)) {
+                final String partKey = name.substring(0, name.length() - PART_SUFFIX.length());
+                final CopyLock lock = acquireCopyLock(partKey);
+                try {
+                    synchronized (lock) {
+                        if (!new File(root, partKey + CHECKPOINT_SUFFIX).isFile()) {
+                            parts[i].delete();
+                        }
+                    }
+                } finally {
+                    releaseCopyLock(partKey, lock);
+                }
+            }
+        }
+        return resumed;
+    }
+
+    /**
+     * The lock of a part key, to synchronize on, and to give back with releaseCopyLock.
+     */
+    private CopyLock acquireCopyLock(final String partKey) {
+        synchronized (copyLocks) {
+            CopyLock lock = copyLocks.get(partKey);
+            if (lock == null) {
+                lock = new CopyLock();
+                copyLocks.put(partKey, lock);
+            }
+            lock.users++;
+            return lock;
+        }
+    }
+
+    private void releaseCopyLock(final String partKey, final CopyLock lock) {
+        synchronized (copyLocks) {
+            if (--lock.users == 0) {
+                copyLocks.remove(partKey);
+            }
+        }
+    }
+
+    private static String partKey(final String source) throws IOException {
+        final ContentDigests digests = new ContentDigests(ContentDigests.SHA_256);
+        digests.update(ByteBuffer.wrap(source.getBytes("UTF-8")));
+        return digests.toJSON().optString(ContentDigests.SHA_256).substring(0, 32);
+    }
+
+    private static JSONObject readCheckpoint(final File checkpointFile) {
+        if (!checkpointFile.isFile()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(checkpointFile);
+            return new JSONObject(new String(ByteStreams.toByteArray(in), "UTF-8"));
+        } catch (Exception e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void writeCheckpoint(
+            final File checkpointFile,
+            final Uri uri,
+            final String fileName,
+            final long size,
+            final long lastModified,
+            final long length) throws IOException {
+        OutputStream out = null;
+        try {
+            final JSONObject checkpoint = new JSONObject();
+            checkpoint.put("uri", uri.toString());
+            checkpoint.put("name", fileName == null ? JSONObject.NULL : fileName);
+            checkpoint.put("size", size);
+            checkpoint.put("lastModified", lastModified);
+            checkpoint.put("length", length);
+            out = new FileOutputStream(checkpointFile, false);
+            out.write(checkpoint.toString().getBytes("UTF-8"));
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void truncate(final File file, final long length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * A file in the store directory which store may move into an entry, see adopt.
+     */
+    public File newTempFile() throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("cannot create " + root);
+        }
+        return new File(root, TMP_PREFIX + UUID.randomUUID());
+    }
+
+    /**
+     * Move a file produced by the plugin itself into the store.
+     *
+     * @param tmpFile a file returned by newTempFile, moved or deleted
+     * @param retain  count a reference to the entry for a pending share
+     * @return the stored file
+     */
+    public StoredContent adopt(final File tmpFile, final String fileName, final boolean retain) throws IOException {
+        final String[] algorithms = ContentDigests.getAlgorithms();
+        final ContentDigests digests = newDigests(algorithms);
+        if (digests != null) {
+            try {
+                ContentCopier.digestFile(tmpFile, 0, digests);
+            } catch (IOException e) {
+                tmpFile.delete();
+                throw e;
+            }
+        }
+        return insert(tmpFile, fileName, tmpFile.length(), digestValues(digests), null, retain, algorithms, false);
+    }
+
+    /**
+     * A temporary file to write content of the given type into, deflated on
+     * the way when it is worth it. Store it with adopt once closed.
+     */
+    public ContentCompressor.Output newOutput(final String type) throws IOException {
+        final int level = ContentCompressor.accepts(type) ? ContentCompressor.getLevel() : 0;
+        return new ContentCompressor.Output(newTempFile(), level, new ContentDigests(ContentDigests.getAlgorithms()));
+    }
+
+    /**
+     * Move a file written through newOutput into the store.
+     *
+     * @param output a closed output, its file is moved or deleted
+     * @param retain count a reference to the entry for a pending share
+     * @return the stored file, with its compressedPath when it was deflated
+     */
+    public StoredContent adopt(final ContentCompressor.Output output, final String fileName, final boolean retain) throws IOException {
+        return insert(output.getFile(), fileName, output.getLength(), output.getDigests().toJSON(),
+                null, retain, ContentDigests.getAlgorithms(), output.isCompressed());
+    }
+
+    /**
+     * Digests computed for an entry, null when none is configured.
+     */
+    private static ContentDigests newDigests(final String[] algorithms) {
+        return algorithms.length > 0 ? new ContentDigests(algorithms) : null;
+    }
+
+    private static JSONObject digestValues(final ContentDigests digests) {
+        return digests != null ? digests.toJSON() : new JSONObject();
+    }
+
+    /**
+     * Key of a new entry: the SHA-256 of its content when it was computed anyway,
+     * else its source, else a random key which is never shared.
+     */
+    private static String contentKey(final JSONObject digestValues, final String sourceKey) throws IOException {
+        final String sha256 = digestValues.optString(ContentDigests.SHA_256, "");
+        if (!sha256.isEmpty()) {
+            return sha256;
+        }
+        if (sourceKey != null) {
+            return partKey(sourceKey);
+        }
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * Turn a complete temporary file into an entry, or drop it when the content is already stored.
+     *
+     * @param compressed tmpFile holds the content deflated, see ContentCompressor
+     */
+    private synchronized StoredContent insert(
+            final File tmpFile,
+            final String fileName,
+            final long copied,
+            final JSONObject digestValues,
+            final String sourceKey,
+            final boolean retain,
+            final String[] algorithms,
+            final boolean compressed) throws IOException {
+        load();
+        final String contentKey = contentKey(digestValues, sourceKey);
+        StoredContent stored = reuse(contentKey, retain, new String[0]);
+        if (stored != null) {
+            tmpFile.delete();
+            // Remember digests the entry was stored without
+            final JSONObject entry = entries.optJSONObject(contentKey);
+            mergeDigests(entry, digestValues);
+            stored = new StoredContent(stored.path, stored.size, selectDigests(entry, algorithms), stored.compressedPath);
+        } else {
+            final File dir = new File(root, contentKey);
+            final File file = new File(dir, safeFileName(fileName));
+            final File target = compressed ? new File(file.getPath() + ContentCompressor.SUFFIX) : file;
+            if ((!dir.isDirectory() && !dir.mkdirs()) || !tmpFile.renameTo(target)) {
+                tmpFile.delete();
+                throw new IOException("cannot store " + target);
+            }
+            final String path = file.getAbsolutePath();
+            try {
+                final JSONObject entry = new JSONObject();
+                entry.put("path", path);
+                entry.put("size", copied);
+                entry.put("refs", retain ? 1 : 0);
+                entry.put("lastAccess", System.currentTimeMillis());
+                entry.put("digests", digestValues);
+                if (compressed) {
+                    entry.put("compressed", true);
+                    entry.put("storedSize", target.length());
+                }
+                entries.put(contentKey, entry);
+                stored = new StoredContent(path, copied, selectDigests(entry, algorithms),
+                        compressed ? target.getAbsolutePath() : null);
+            } catch (JSONException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+        if (sourceKey != null) {
+            try {
+                sources.put(sourceKey, contentKey);
+            } catch (JSONException e) {
+                //
+            }
+        }
+        save();
+        return stored;
+    }
+
+    /**
+     * Drop the reference a pending share held on a stored file.
+     */
+    public synchronized void release(final String path) {
+        if (path == null || path.isEmpty()) {
+            return;
+        }
+        load();
+        final JSONObject entry = findEntry(ContentCompressor.decompressedPath(path));
+        if (entry != null) {
+            try {
+                entry.put("refs", Math.max(0, entry.optInt("refs", 0) - 1));
+            } catch (JSONException e) {
+                //
+            }
+            save();
+        }
+    }
+
+    /**
+     * The entry stored at a path, compressed or not, null if none. Must hold the lock.
+     */
+    private JSONObject findEntry(final String path) {
+        final Iterator<String> keys = entries.keys();
+        while (keys.hasNext()) {
+            final JSONObject entry = entries.optJSONObject(keys.next());
+            if (entry != null && path.equals(entry.optString("path"))) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keep an entry compressed, when its type and a sample of its content say it is worth it.
+     * <p>
+     * The entry is left as it is when another pending share already holds its
+     * plain path, or when compression is disabled, see ContentCompressor.
+     *
+     * @param stored an entry returned by store, retained by the caller
+     * @return the entry, with its compressedPath when it is compressed
+     */
+    public StoredContent compress(final StoredContent stored, final String type) {
+        final int level = ContentCompressor.getLevel();
+        if (level <= 0 || stored.compressedPath != null || !ContentCompressor.accepts(type)) {
+            return stored;
+        }
+        final File file = new File(stored.path);
+        File tmpFile = null;
+        try {
+            if (!ContentCompressor.isCompressible(file, level)) {
+                return stored;
+            }
+            tmpFile = newTempFile();
+            ContentCompressor.deflate(file, tmpFile, level);
+        } catch (IOException e) {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+            return stored;
+        }
+
+        synchronized (this) {
+            load();
+            final JSONObject entry = findEntry(stored.path);
+            final File compressedFile = new File(stored.path + ContentCompressor.SUFFIX);
+            if (entry != null && entry.optBoolean("compressed", false)) {
+                // Compressed by a concurrent share of the same content
+                tmpFile.delete();
+                return new StoredContent(stored.path, stored.size, stored.digests, compressedFile.getAbsolutePath());
+            }
+            if (entry == null || entry.optInt("refs", 0) > 1 || !tmpFile.renameTo(compressedFile)) {
+                tmpFile.delete();
+                return stored;
+            }
+            file.delete();
+            try {
+                entry.put("compressed", true);
+                entry.put("storedSize", compressedFile.length());
+            } catch (JSONException e) {
+                //
+            }
+            save();
+            return new StoredContent(stored.path, stored.size, stored.digests, compressedFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Restore the plain file of a compressed entry, for callers which need a real path.
+     * <p>
+     * The compressed file is deleted, other shares of the same content find
+     * the plain file from their compressedPath, see ContentCompressor.decompressedPath.
+     *
+     * @return the entry, without compressedPath
+     */
+    public StoredContent inflate(final StoredContent stored) throws IOException {
+        if (stored.compressedPath == null) {
+            return stored;
+        }
+        final File file = new File(stored.path);
+        final File compressedFile = new File(stored.compressedPath);
+        // Concurrent calls for the same entry wait for the first one
+        final CopyLock lock = acquireCopyLock(stored.path);
+        try {
+            synchronized (lock) {
+                File tmpFile = null;
+                if (!file.isFile()) {
+                    tmpFile = newTempFile();
+                    try {
+                        ContentCompressor.inflate(compressedFile, tmpFile);
+                    } catch (IOException e) {
+                        tmpFile.delete();
+                        throw e;
+                    }
+                }
+                synchronized (this) {
+                    load();
+                    if (tmpFile != null && !tmpFile.renameTo(file)) {
+                        tmpFile.delete();
+                        throw new IOException("cannot store " + file);
+                    }
+                    final JSONObject entry = findEntry(stored.path);
+                    if (entry != null) {
+                        entry.remove("compressed");
+                        entry.remove("storedSize");
+                        save();
+                    }
+                    compressedFile.delete();
+                }
+            }
+        } finally {
+            releaseCopyLock(stored.path, lock);
+        }
+        return new StoredContent(stored.path, stored.size, stored.digests);
+    }
+
+    /**
+     * Evict least recently used entries until the store fits in quotaBytes.
+     * <p>
+     * Referenced entries and files listed in pinnedPaths are never evicted.
+     *
+     * @return the number of bytes freed
+     */
+    public synchronized long trim(final long quotaBytes, final Set<String> pinnedPaths) {
+        load();
+        final List<String> keys = new ArrayList<>();
+        long total = 0;
+        final Iterator<String> it = entries.keys();
+        while (it.hasNext()) {
+            final String key = it.next();
+            keys.add(key);
+            total += storedSize(entries.optJSONObject(key));
+        }
+        if (total <= quotaBytes) {
+            return 0;
+        }
+
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(final String a, final String b) {
+                final long lastA = entries.optJSONObject(a).optLong("lastAccess", 0);
+                final long lastB = entries.optJSONObject(b).optLong("lastAccess", 0);
+                return lastA < lastB ? -1 : (lastA == lastB ? 0 : 1);
+            }
+        });
+
+        long freed = 0;
+        for (String key : keys) {
+            if (total - freed <= quotaBytes) {
+                break;
+            }
+            freed += evict(key, pinnedPaths);
+        }
+        if (freed > 0) {
+            save();
+        }
+        return freed;
+    }
+
+    /**
+     * Evict every entry which is neither referenced nor pinned.
+     *
+     * @return the number of bytes freed
+     */
+    public synchronized long purge(final Set<String> pinnedPaths) {
+        return trim(-1, pinnedPaths);
+    }
+
+    /**
+     * Delete an entry unless it is in use. Must hold the lock.
+     *
+     * @return the number of bytes freed
+     */
+    private long evict(final String contentKey, final Set<String> pinnedPaths) {
+        final JSONObject entry = entries.optJSONObject(contentKey);
+        final String path = entry.optString("path");
+        if (entry.optInt("refs", 0) > 0
+                || pinnedPaths.contains(path)
+                || pinnedPaths.contains(path + ContentCompressor.SUFFIX)) {
+            return 0;
+        }
+        final File file = new File(path);
+        file.delete();
+        new File(path + ContentCompressor.SUFFIX).delete();
+        file.getParentFile().delete();
+        entries.remove(contentKey);
+
+        final Iterator<String> it = sources.keys();
+        final List<String> staleSources = new ArrayList<>();
+        while (it.hasNext()) {
+            final String sourceKey = it.next();
+            if (contentKey.equals(sources.optString(sourceKey))) {
+                staleSources.add(sourceKey);
+            }
+        }
+        for (String sourceKey : staleSources) {
+            sources.remove(sourceKey);
+        }
+        return storedSize(entry);
+    }
+
+    /**
+     * Bytes an entry takes on disk.
+     */
+    private static long storedSize(final JSONObject entry) {
+        return entry.optLong("storedSize", entry.optLong("size", 0));
+    }
+
+    /**
+     * Return an existing entry, counting a new reference if asked.
+     * Entries missing one of the requested digests are not reused. Must hold the lock.
+     */
+    private StoredContent reuse(final String contentKey, final boolean retain, final String[] algorithms) {
+        if (contentKey == null) {
+            return null;
+        }
+        final JSONObject entry = entries.optJSONObject(contentKey);
+        if (entry == null) {
+            return null;
+        }
+        final String path = entry.optString("path");
+        final String compressedPath = entry.optBoolean("compressed", false) ? path + ContentCompressor.SUFFIX : null;
+        if (!new File(compressedPath != null ? compressedPath : path).isFile()) {
+            entries.remove(contentKey);
+            return null;
+        }
+        final JSONObject digests = selectDigests(entry, algorithms);
+        if (digests.length() < algorithms.length) {
+            return null;
+        }
+        try {
+            if (retain) {
+                entry.put("refs", entry.optInt("refs", 0) + 1);
+            }
+            entry.put("lastAccess", System.currentTimeMillis());
+        } catch (JSONException e) {
+            //
+        }
+        save();
+        return new StoredContent(path, entry.optLong("size", -1), digests, compressedPath);
+    }
+
+    /**
+     * The digests of an entry limited to the given algorithms.
+     */
+    private static JSONObject selectDigests(final JSONObject entry, final String[] algorithms) {
+        final JSONObject all = entry.optJSONObject("digests");
+        final JSONObject digests = new JSONObject();
+        if (all == null) {
+            return digests;
+        }
+        for (String algorithm : algorithms) {
+            final String value = all.optString(algorithm, null);
+            if (value != null) {
+                try {
+                    digests.put(algorithm, value);
+                } catch (JSONException e) {
+                    //
+                }
+            }
+        }
+        return digests;
+    }
+
+    private static void mergeDigests(final JSONObject entry, final JSONObject digests) {
+        try {
+            JSONObject all = entry.optJSONObject("digests");
+            if (all == null) {
+                all = new JSONObject();
+                entry.put("digests", all);
+            }
+            final Iterator<String> it = digests.keys();
+            while (it.hasNext()) {
+                final String algorithm = it.next();
+                all.put(algorithm, digests.getString(algorithm));
+            }
+        } catch (JSONException e) {
+            //
+        }
+    }
+
+    /**
+     * Read the index on first use. Must hold the lock.
+     */
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new JSONObject();
+        sources = new JSONObject();
+        final File indexFile = new File(root, INDEX_NAME);
+        if (!indexFile.isFile()) {
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(indexFile);
+            final JSONObject index = new JSONObject(new String(ByteStreams.toByteArray(in), "UTF-8"));
+            if (index.optJSONObject("entries") != null) {
+                entries = index.getJSONObject("entries");
+            }
+            if (index.optJSONObject("sources") != null) {
+                sources = index.getJSONObject("sources");
+            }
+        } catch (Exception e) {
+            // A broken index only costs new copies
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the index. Must hold the lock.
+     */
+    private void save() {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            return;
+        }
+        final File tmpIndex = new File(root, INDEX_NAME + ".tmp");
+        OutputStream out = null;
+        try {
+            final JSONObject index = new JSONObject();
+            index.put("entries", entries);
+            index.put("sources", sources);
+            out = new FileOutputStream(tmpIndex, false);
+            out.write(index.toString().getBytes("UTF-8"));
+            out.close();
+            out = null;
+            tmpIndex.renameTo(new File(root, INDEX_NAME));
+        } catch (Exception e) {
+            //
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Display names come from other apps, keep them inside the entry directory.
+     */
+    private static String safeFileName(final String fileName) {
+        final String name = fileName == null ? "" : fileName.replace('/', '_').replace('\\', '_');
+        if (name.isEmpty() || ".".equals(name) || "..".equals(name)) {
+            return "file";
+        }
+        return name;
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
+// vim: ts=4:sw=4:et
@@ -0,0 +1,417 @@
+package com.wisdomgarden.trpc.openwith;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only log of the shares waiting to be fetched by javascript.
+ * <p>
+ * Each ingested share is appended as one line of JSON with a single write,
+ * so saving a share costs the same whatever the number of pending shares.
+ * Writes are synced before they are reported done, as SharedPreferences.commit
+ * did, so an acknowledged share survives a crash.
+ * Records are only parsed when the journal is read. A record torn by a crash
+ * is skipped, and the journal is compacted the next time it is read.
+ * <p>
+ * Records are numbered with an increasing "seq", so javascript can page
+ * through pending items and acknowledge them, see ack. Numbers start from
+ * the current time in each process, a position held across restarts stays
+ * behind new records.
+ * <p>
+ * The byte offset of each record is kept while the journal is only written
+ * through this class, so a page is read from its cursor without parsing the
+ * records before it, see readFrom.
+ */
+class ShareJournal {
+
+    private final File file;
+
+    /**
+     * Number of the next appended record, -1 until the journal was read.
+     */
+    private long nextSeq = -1;
+
+    /**
+     * Byte offset of each record by seq, null when not known or when records
+     * are not in seq order.
+     */
+    private TreeMap<Long, Long> offsets = null;
+
+    /**
+     * Length of the journal when offsets was last updated.
+     */
+    private long indexedLength = 0;
+
+    public ShareJournal(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Append a share record, numbering it.
+     */
+    public void append(final JSONObject record) throws IOException {
+        append(Collections.singletonList(record));
+    }
+
+    /**
+     * Append share records with a single write, numbering them in order.
+     */
+    public synchronized void append(final List<JSONObject> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        if (nextSeq < 0) {
+            read();
+        }
+        final boolean indexed = isIndexed();
+        final long position = file.length();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<Long> positions = new ArrayList<>();
+        for (JSONObject record : records) {
+            try {
+                record.put("seq", nextSeq++);
+            } catch (JSONException e) {
+                throw new IOException(e.getMessage());
+            }
+            positions.add(position + bytes.size());
+            bytes.write((record.toString() + '\n').getBytes("UTF-8"));
+        }
+        final File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        final FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            bytes.writeTo(out);
+            out.getFD().sync();
+        } catch (IOException e) {
+            offsets = null;
+            throw e;
+        } finally {
+            out.close();
+        }
+        if (indexed) {
+            // Numbered after all the records already there, the order holds
+            for (int i = 0; i < records.size(); i++) {
+                offsets.put(records.get(i).optLong("seq"), positions.get(i));
+            }
+            indexedLength = position + bytes.size();
+        }
+    }
+
+    /**
+     * Read all records, in the order they were appended.
+     */
+    public synchronized List<JSONObject> read() {
+        final List<JSONObject> records = new ArrayList<>();
+        final List<Long> positions = new ArrayList<>();
+        offsets = null;
+        if (!file.isFile()) {
+            index(records, positions, 0);
+            return records;
+        }
+
+        boolean damaged = false;
+        long length = 0;
+        LineReader reader = null;
+        try {
+            reader = new LineReader(new FileInputStream(file), 0);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    records.add(new JSONObject(line));
+                    positions.add(reader.getLineStart());
+                } catch (JSONException e) {
+                    damaged = true;
+                }
+            }
+            length = reader.getPosition();
+        } catch (IOException e) {
+            damaged = true;
+        } finally {
+            closeQuietly(reader);
+        }
+
+        // Records saved before they were numbered
+        long maxSeq = -1;
+        for (JSONObject record : records) {
+            maxSeq = Math.max(maxSeq, record.optLong("seq", -1));
+        }
+        nextSeq = Math.max(Math.max(nextSeq, maxSeq + 1), System.currentTimeMillis());
+        for (JSONObject record : records) {
+            if (!record.has("seq")) {
+                try {
+                    record.put("seq", nextSeq++);
+                } catch (JSONException e) {
+                    //
+                }
+                damaged = true;
+            }
+        }
+
+        if (damaged) {
+            rewrite(records);
+        } else {
+            index(records, positions, length);
+        }
+        return records;
+    }
+
+    /**
+     * Read the records from the one numbered seq, or the first one after it,
+     * until they hold more than minItems items.
+     */
+    public synchronized List<JSONObject> readFrom(final long seq, final long minItems) {
+        final List<JSONObject> all = isIndexed() ? null : read();
+        if (offsets == null) {
+            // Records out of order, they are all parsed
+            return select(all != null ? all : read(), seq, minItems);
+        }
+
+        final List<JSONObject> records = new ArrayList<>();
+        final Map.Entry<Long, Long> from = offsets.ceilingEntry(seq);
+        if (from == null) {
+            return records;
+        }
+        LineReader reader = null;
+        try {
+            final FileInputStream in = new FileInputStream(file);
+            in.getChannel().position(from.getValue());
+            reader = new LineReader(in, from.getValue());
+            long count = 0;
+            String line;
+            while (count <= minItems && (line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final JSONObject record = new JSONObject(line);
+                records.add(record);
+                count += countItems(record);
+            }
+        } catch (IOException | JSONException e) {
+            // Changed behind our back, parse it all again
+            return select(read(), seq, minItems);
+        } finally {
+            closeQuietly(reader);
+        }
+        return records;
+    }
+
+    private static List<JSONObject> select(final List<JSONObject> all, final long seq, final long minItems) {
+        final List<JSONObject> records = new ArrayList<>();
+        long count = 0;
+        for (JSONObject record : all) {
+            if (count > minItems) {
+                break;
+            }
+            if (record.optLong("seq", -1) >= seq) {
+                records.add(record);
+                count += countItems(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Remove the items up to, and including, a position.
+     * <p>
+     * Items keep their position in their record when the items before them are
+     * removed: the record "offset" counts the items already acknowledged.
+     *
+     * @param seq   record of the last acknowledged item
+     * @param index position of the last acknowledged item in that record
+     * @return the removed items
+     */
+    public synchronized List<JSONObject> ack(final long seq, final int index) {
+        final List<JSONObject> removed = new ArrayList<>();
+        final List<JSONObject> kept = new ArrayList<>();
+        for (JSONObject record : read()) {
+            final long recordSeq = record.optLong("seq", -1);
+            final JSONArray items = record.optJSONArray("items");
+            if (recordSeq > seq || items == null) {
+                kept.add(record);
+                continue;
+            }
+            final int offset = record.optInt("offset", 0);
+            final int count = recordSeq < seq ? items.length() : Math.min(items.length(), index - offset + 1);
+            final JSONArray remaining = new JSONArray();
+            for (int i = 0; i < items.length(); i++) {
+                final JSONObject item = items.optJSONObject(i);
+                if (i < count) {
+                    if (item != null) {
+                        removed.add(item);
+                    }
+                } else {
+                    remaining.put(item);
+                }
+            }
+            if (remaining.length() > 0) {
+                try {
+                    record.put("items", remaining);
+                    record.put("offset", offset + Math.max(0, count));
+                } catch (JSONException e) {
+                    //
+                }
+                kept.add(record);
+            }
+        }
+        if (!removed.isEmpty()) {
+            if (kept.isEmpty()) {
+                file.delete();
+            } else {
+                rewrite(kept);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Read all records and empty the journal.
+     */
+    public synchronized List<JSONObject> drain() {
+        final List<JSONObject> records = read();
+        file.delete();
+        index(new ArrayList<JSONObject>(), new ArrayList<Long>(), 0);
+        return records;
+    }
+
+    /**
+     * Replace the journal content with the given records.
+     */
+    private void rewrite(final List<JSONObject> records) {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        offsets = null;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile, false);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final List<Long> positions = new ArrayList<>();
+            for (JSONObject record : records) {
+                positions.add((long) bytes.size());
+                bytes.write((record.toString() + '\n').getBytes("UTF-8"));
+            }
+            bytes.writeTo(out);
+            // The rename must not point to data still in flight
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (tmpFile.renameTo(file)) {
+                index(records, positions, bytes.size());
+            }
+        } catch (IOException e) {
+            //
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Keep the offsets of the records making up the whole journal, unless
+     * they are not in seq order.
+     */
+    private void index(final List<JSONObject> records, final List<Long> positions, final long length) {
+        final TreeMap<Long, Long> index = new TreeMap<>();
+        long lastSeq = Long.MIN_VALUE;
+        for (int i = 0; i < records.size(); i++) {
+            final long seq = records.get(i).optLong("seq", -1);
+            if (seq <= lastSeq) {
+                offsets = null;
+                return;
+            }
+            lastSeq = seq;
+            index.put(seq, positions.get(i));
+        }
+        offsets = index;
+        indexedLength = length;
+    }
+
+    private boolean isIndexed() {
+        return offsets != null && file.length() == indexedLength;
+    }
+
+    private static int countItems(final JSONObject record) {
+        final JSONArray items = record.optJSONArray("items");
+        return items != null ? items.length() : 0;
+    }
+
+    /**
+     * Reads UTF-8 lines one at a time, knowing the byte offset of each.
+     */
+    private static class LineReader implements Closeable {
+        private final InputStream in;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private long position;
+        private long lineStart;
+
+        LineReader(final InputStream in, final long position) {
+            this.in = new BufferedInputStream(in);
+            this.position = position;
+        }
+
+        /**
+         * @return the next line without its '\n', null at the end of the stream
+         */
+        String readLine() throws IOException {
+            line.reset();
+            lineStart = position;
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b == '\n') {
+                    return line.toString("UTF-8");
+                }
+                line.write(b);
+            }
+            return line.size() > 0 ? line.toString("UTF-8") : null;
+        }
+
+        /**
+         * Offset of the line last returned by readLine.
+         */
+        long getLineStart() {
+            return lineStart;
+        }
+
+        /**
+         * Offset of the next byte to read.
+         */
+        long getPosition() {
+            return position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
+// vim: ts=4:sw=4:et
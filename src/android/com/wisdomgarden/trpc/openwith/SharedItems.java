@@ -0,0 +1,122 @@
+package com.wisdomgarden.trpc.openwith;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the items ingested during this session, by id, so they can be
+ * referred to from javascript after fetchSharedData delivered them.
+ * <p>
+ * Copies made on demand by materialize are not in the journal record of
+ * their item, they are tracked here until the item is no longer pending.
+ */
+class SharedItems {
+
+    private static class Entry {
+        final JSONObject item;
+        /**
+         * Copy made on demand, retained in the share cache
+         */
+        String copyPath = null;
+        /**
+         * The share of the item is no longer pending
+         */
+        boolean released = false;
+
+        Entry(final JSONObject item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * Oldest items are forgotten past this count.
+     */
+    private static final int MAX_ITEMS = 500;
+
+    private final Map<String, Entry> items = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ITEMS;
+        }
+    };
+
+    /**
+     * Remember all items of a serialized share.
+     */
+    public synchronized void register(final JSONArray sharedItems) {
+        if (sharedItems == null) {
+            return;
+        }
+        for (int i = 0; i < sharedItems.length(); i++) {
+            final JSONObject item = sharedItems.optJSONObject(i);
+            if (item != null && item.has("id")) {
+                final Entry entry = items.get(item.optString("id"));
+                if (entry == null || entry.item != item) {
+                    items.put(item.optString("id"), new Entry(item));
+                }
+            }
+        }
+    }
+
+    /**
+     * Find an item, null if it is unknown.
+     */
+    public synchronized JSONObject get(final String id) {
+        final Entry entry = items.get(id);
+        return entry == null ? null : entry.item;
+    }
+
+    /**
+     * Whether the share of an item is still pending, so a copy made for it has to be retained.
+     */
+    public synchronized boolean isPending(final String id) {
+        final Entry entry = items.get(id);
+        return entry != null && !entry.released;
+    }
+
+    /**
+     * Remember the retained copy made on demand for an item.
+     *
+     * @return false when the item is no longer pending, the caller then releases the copy
+     */
+    public synchronized boolean putCopy(final String id, final String path) {
+        final Entry entry = items.get(id);
+        if (entry == null || entry.released) {
+            return false;
+        }
+        entry.copyPath = path;
+        return true;
+    }
+
+    /**
+     * Mark the items of a share as no longer pending.
+     *
+     * @return the retained copies made on demand for them, to release
+     */
+    public synchronized List<String> release(final JSONArray sharedItems) {
+        final List<String> copies = new ArrayList<>();
+        for (int i = 0; sharedItems != null && i < sharedItems.length(); i++) {
+            final JSONObject item = sharedItems.optJSONObject(i);
+            final Entry entry = item == null ? null : items.get(item.optString("id"));
+            if (entry == null) {
+                continue;
+            }
+            entry.released = true;
+            if (entry.copyPath != null) {
+                copies.add(entry.copyPath);
+                entry.copyPath = null;
+            }
+        }
+        return copies;
+    }
+
+    public synchronized void clear() {
+        items.clear();
+    }
+}
+// vim: ts=4:sw=4:et
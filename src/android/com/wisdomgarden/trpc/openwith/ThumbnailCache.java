@@ -0,0 +1,231 @@
+package com.wisdomgarden.trpc.openwith;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.util.LruCache;
+import android.util.Size;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small previews of shared images and videos, built while their content is copied.
+ * <p>
+ * Thumbnails come from ContentResolver.loadThumbnail when available (Android 10),
+ * from a sampled decode of images otherwise. They are JPEG files under
+ * "openwith-thumbnails" in the cache dir, named after the uri, size and last
+ * modification date of the item, so sharing the same item again finds its
+ * preview on disk while new content behind a reused uri gets its own. Recently
+ * used paths are also kept in memory, and the directory is trimmed to the
+ * most recently used files.
+ */
+class ThumbnailCache {
+
+    private static final String DIR_NAME = "openwith-thumbnails";
+
+    private static final int MAX_DISK_ENTRIES = 200;
+    private static final int MAX_MEMORY_ENTRIES = 64;
+    private static final int QUALITY = 80;
+
+    /**
+     * Longest wait for the thumbnails of a share once its items are ready
+     */
+    private static final long MAX_WAIT_MS = 2000;
+
+    /**
+     * Longest side of thumbnails, 0 disables them.
+     */
+    private static int SIZE = 0;
+
+    private static ExecutorService executor = null;
+
+    /**
+     * uri key -&gt; thumbnail path
+     */
+    private static final LruCache<String, String> memory = new LruCache<>(MAX_MEMORY_ENTRIES);
+
+    /**
+     * Notified from the thumbnail threads as soon as a thumbnail is built.
+     */
+    interface Listener {
+        void onThumbnailReady(String thumbnailPath);
+    }
+
+    public static synchronized void setSize(final int size) {
+        SIZE = Math.max(0, size);
+        if (SIZE > 0 && executor == null) {
+            executor = Executors.newFixedThreadPool(2);
+        }
+    }
+
+    private static synchronized int getSize() {
+        return SIZE;
+    }
+
+    public static boolean accepts(final String type) {
+        return type != null
+                && ((type.startsWith("image/") && !type.startsWith("image/svg"))
+                || (type.startsWith("video/") && Build.VERSION.SDK_INT >= 29));
+    }
+
+    /**
+     * Start building the thumbnail of an item, next to whatever is done with its content.
+     *
+     * @param size         size resolved for the item, -1 if unknown
+     * @param lastModified last modification date resolved for the item, -1 if unknown
+     * @param listener     notified once the thumbnail is built, may be null
+     * @return null when thumbnails are disabled or the type has none
+     */
+    public static Future<String> request(
+            final Context context,
+            final Uri uri,
+            final String type,
+            final long size,
+            final long lastModified,
+            final File cacheDir,
+            final Listener listener) {
+        final int thumbnailSize = getSize();
+        if (thumbnailSize <= 0 || !accepts(type)) {
+            return null;
+        }
+        return executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                final String thumbnailPath = getThumbnail(context, uri, size, lastModified, thumbnailSize, cacheDir);
+                if (thumbnailPath != null && listener != null) {
+                    listener.onThumbnailReady(thumbnailPath);
+                }
+                return thumbnailPath;
+            }
+        });
+    }
+
+    /**
+     * The time after which await gives up on the thumbnails of a share.
+     */
+    public static long deadline() {
+        return System.currentTimeMillis() + MAX_WAIT_MS;
+    }
+
+    /**
+     * The path of a requested thumbnail, null if it failed or is not built by deadline.
+     */
+    public static String await(final Future<String> thumbnail, final long deadline) {
+        if (thumbnail == null) {
+            return null;
+        }
+        try {
+            return thumbnail.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            thumbnail.cancel(true);
+            return null;
+        }
+    }
+
+    private static String getThumbnail(
+            final Context context,
+            final Uri uri,
+            final long size,
+            final long lastModified,
+            final int thumbnailSize,
+            final File cacheDir) throws Exception {
+        // Providers reuse uris for new content, the date tells them apart
+        final String key = key(uri + "|" + size + "|" + lastModified + "|" + thumbnailSize);
+        final String cached = memory.get(key);
+        if (cached != null && new File(cached).isFile()) {
+            return cached;
+        }
+
+        final File dir = new File(cacheDir, DIR_NAME);
+        final File file = new File(dir, key + ".jpg");
+        if (file.isFile()) {
+            file.setLastModified(System.currentTimeMillis());
+            memory.put(key, file.getAbsolutePath());
+            return file.getAbsolutePath();
+        }
+
+        final Bitmap bitmap = Build.VERSION.SDK_INT >= 29
+                ? context.getContentResolver().loadThumbnail(uri, new Size(thumbnailSize, thumbnailSize), null)
+                : ImageScaler.decodeSampled(context, uri, thumbnailSize);
+        if (bitmap == null) {
+            return null;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            bitmap.recycle();
+            throw new IOException("cannot create " + dir);
+        }
+        final File tmpFile = new File(dir, key + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile, false);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("cannot store " + file);
+            }
+        } finally {
+            closeQuietly(out);
+            tmpFile.delete();
+            bitmap.recycle();
+        }
+        memory.put(key, file.getAbsolutePath());
+        trim(dir);
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Keep the most recently used thumbnails only.
+     */
+    private static synchronized void trim(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null || files.length <= MAX_DISK_ENTRIES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                final long lastA = a.lastModified();
+                final long lastB = b.lastModified();
+                return lastA > lastB ? -1 : (lastA == lastB ? 0 : 1);
+            }
+        });
+        for (int i = MAX_DISK_ENTRIES; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static String key(final String value) throws Exception {
+        final byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes("UTF-8"));
+        final StringBuilder sb = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
+// vim: ts=4:sw=4:et
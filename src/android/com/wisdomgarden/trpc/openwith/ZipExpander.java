@@ -0,0 +1,296 @@
+package com.wisdomgarden.trpc.openwith;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Expand shared ZIP archives into their entries, straight from the content uri.
+ * <p>
+ * The archive is read once through a ZipInputStream and never copied: each
+ * file entry is written to a temporary file and adopted by the share cache,
+ * where it becomes an item of its own. Entries are limited in count and in
+ * total uncompressed bytes, so a zip bomb stops at the limit, and entries
+ * whose path would leave the archive ("../", absolute paths) are refused.
+ */
+class ZipExpander {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024L * 1024L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static boolean ENABLED = false;
+    private static int MAX_ENTRIES = DEFAULT_MAX_ENTRIES;
+    private static long MAX_BYTES = DEFAULT_MAX_BYTES;
+
+    /**
+     * @param maxEntries most file entries expanded from a single archive
+     * @param maxBytes   most uncompressed bytes expanded from a single archive
+     */
+    public static synchronized void configure(final boolean enabled, final int maxEntries, final long maxBytes) {
+        ENABLED = enabled;
+        MAX_ENTRIES = maxEntries > 0 ? maxEntries : DEFAULT_MAX_ENTRIES;
+        MAX_BYTES = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+    }
+
+    public static synchronized boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Plain ZIP archives only, documents built on ZIP (docx, epub, apk, ...) are kept whole.
+     */
+    public static boolean accepts(final String type, final String fileName) {
+        if ("application/zip".equals(type) || "application/x-zip-compressed".equals(type)) {
+            return true;
+        }
+        return fileName != null && fileName.toLowerCase(Locale.US).endsWith(".zip");
+    }
+
+    /**
+     * A file entry stored in the share cache.
+     */
+    static class Entry {
+        public final StoredContent stored;
+        /**
+         * Path of the entry in the archive, "/" separated
+         */
+        public final String entryPath;
+        public final String name;
+        public final String type;
+
+        Entry(final StoredContent stored, final String entryPath, final String name, final String type) {
+            this.stored = stored;
+            this.entryPath = entryPath;
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    /**
+     * An entry left out, only reported once the whole archive was read.
+     */
+    private static class Rejection {
+        final String entryPath;
+        final long size;
+        final String reason;
+
+        Rejection(final String entryPath, final long size, final String reason) {
+            this.entryPath = entryPath;
+            this.size = size;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Store the file entries of an archive, retained for a pending share.
+     * <p>
+     * Entries over the limits of budget, or of the archive, are recorded as
+     * rejected. Past the archive limits, expansion stops at the first entry
+     * left out.
+     *
+     * @param listener notified of the bytes expanded so far, may stop the expansion by throwing
+     * @return the stored entries, in archive order
+     * @throws IOException when the archive cannot be read or has no entries, nothing is kept then
+     */
+    public static List<Entry> expand(
+            final Context context,
+            final Uri uri,
+            final File tmpDir,
+            final IngestBudget budget,
+            final CopyListener listener) throws IOException {
+        final int maxEntries;
+        final long maxBytes;
+        synchronized (ZipExpander.class) {
+            maxEntries = MAX_ENTRIES;
+            maxBytes = MAX_BYTES;
+        }
+
+        final ShareCache shareCache = ShareCache.get(tmpDir);
+        final List<Entry> entries = new ArrayList<>();
+        final List<Long> reserved = new ArrayList<>();
+        final List<Rejection> rejections = new ArrayList<>();
+        final long start = IngestMetrics.start();
+        long expandedBytes = 0;
+        InputStream source = null;
+        ZipInputStream zip = null;
+        try {
+            source = context.getContentResolver().openInputStream(uri);
+            if (source == null) {
+                throw new FileNotFoundException("cannot open " + uri);
+            }
+            zip = new ZipInputStream(source);
+            ZipEntry zipEntry;
+            while ((zipEntry = zip.getNextEntry()) != null) {
+                if (zipEntry.isDirectory()) {
+                    continue;
+                }
+                final String entryPath = safeEntryPath(zipEntry.getName());
+                if (entryPath == null) {
+                    rejections.add(new Rejection(zipEntry.getName(), zipEntry.getSize(), "unsafeEntryPath"));
+                    continue;
+                }
+                if (entryPath.startsWith("__MACOSX/")) {
+                    continue;
+                }
+                final String name = entryPath.substring(entryPath.lastIndexOf('/') + 1);
+                if (entries.size() >= maxEntries) {
+                    rejections.add(new Rejection(entryPath, zipEntry.getSize(), "maxArchiveEntries"));
+                    break;
+                }
+                if (zipEntry.getSize() >= 0 && expandedBytes + zipEntry.getSize() > maxBytes) {
+                    rejections.add(new Rejection(entryPath, zipEntry.getSize(), "maxArchiveBytes"));
+                    break;
+                }
+                if (zipEntry.getSize() >= 0) {
+                    final String reason = budget.reserve(zipEntry.getSize());
+                    if (reason != null) {
+                        rejections.add(new Rejection(entryPath, zipEntry.getSize(), reason));
+                        continue;
+                    }
+                    reserved.add(zipEntry.getSize());
+                }
+
+                // Sizes in the archive may lie, the copy stops at the limit whatever they say
+                final String type = guessType(name);
+                final ContentCompressor.Output output = shareCache.newOutput(type);
+                final long copied = copy(zip, output, maxBytes - expandedBytes, expandedBytes, listener);
+                if (copied < 0) {
+                    if (zipEntry.getSize() >= 0) {
+                        // Not expanded, its size goes back to the share
+                        budget.unreserve(zipEntry.getSize());
+                        reserved.remove(reserved.size() - 1);
+                    }
+                    rejections.add(new Rejection(entryPath, zipEntry.getSize(), "maxArchiveBytes"));
+                    break;
+                }
+                expandedBytes += copied;
+                if (zipEntry.getSize() < 0) {
+                    final String reason = budget.reserve(copied);
+                    if (reason != null) {
+                        output.getFile().delete();
+                        rejections.add(new Rejection(entryPath, copied, reason));
+                        continue;
+                    }
+                    reserved.add(copied);
+                }
+                entries.add(new Entry(shareCache.adopt(output, name, true), entryPath, name, type));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Corrupted, encrypted or not a zip at all: the archive is kept whole
+            for (Entry entry : entries) {
+                shareCache.release(entry.stored.path);
+            }
+            for (Long size : reserved) {
+                budget.unreserve(size);
+            }
+            throw e instanceof IOException ? (IOException) e : new IOException(e.toString());
+        } finally {
+            closeQuietly(zip);
+            closeQuietly(source);
+            IngestMetrics.record(IngestMetrics.COPY, start);
+            IngestMetrics.addCopiedBytes(expandedBytes);
+        }
+        if (entries.isEmpty() && rejections.isEmpty()) {
+            // Not a zip, or an empty one
+            throw new IOException("no entries in " + uri);
+        }
+        for (Rejection rejection : rejections) {
+            budget.reject(uri, rejection.entryPath, rejection.size, rejection.reason);
+        }
+        return entries;
+    }
+
+    /**
+     * The path of an entry, null when it would resolve outside the archive.
+     */
+    static String safeEntryPath(final String name) {
+        if (name == null) {
+            return null;
+        }
+        final String path = name.replace('\\', '/');
+        if (path.startsWith("/") || (path.length() > 1 && path.charAt(1) == ':')) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder(path.length());
+        for (String segment : path.split("/")) {
+            if ("..".equals(segment)) {
+                return null;
+            }
+            if (segment.isEmpty() || ".".equals(segment)) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(segment);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static String guessType(final String name) {
+        final String type = URLConnection.guessContentTypeFromName(name);
+        return type != null ? type : "application/octet-stream";
+    }
+
+    /**
+     * Copy the current entry into out, closed once the entry is complete.
+     *
+     * @param offset bytes expanded before this entry, for listener
+     * @return the bytes copied, -1 when the entry is larger than maxBytes
+     */
+    private static long copy(
+            final InputStream in,
+            final ContentCompressor.Output out,
+            final long maxBytes,
+            final long offset,
+            final CopyListener listener) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (total > maxBytes) {
+                    closeQuietly(out);
+                    out.getFile().delete();
+                    return -1;
+                }
+                out.write(buffer, 0, read);
+                if (listener != null) {
+                    listener.onProgress(offset + total);
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            closeQuietly(out);
+            out.getFile().delete();
+            throw e;
+        }
+        return total;
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
+// vim: ts=4:sw=4:et
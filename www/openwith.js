@@ -23,6 +23,10 @@ function initOpenwithPlugin (root) {
   openwith.SEND = 'SEND'
   openwith.VIEW = 'VIEW'
 
+  // manifest formats
+  openwith.JSON = 'json'
+  openwith.BINARY = 'binary'
+
   //
   // state variables
   //
@@ -146,7 +150,117 @@ function initOpenwithPlugin (root) {
     cordova.exec(initSuccess, initError, PLUGIN_NAME, 'init', [])
   }
 
-  openwith.fetchSharedData = function () {
+  // Decode the UTF-8 bytes of a string of a binary manifest.
+  var decodeUtf8 = function (bytes) {
+    if (typeof TextDecoder !== 'undefined') {
+      return new TextDecoder('utf-8').decode(bytes)
+    }
+    var binary = ''
+    for (var i = 0; i < bytes.length; i++) {
+      binary += String.fromCharCode(bytes[i])
+    }
+    return decodeURIComponent(escape(binary))
+  }
+
+  // Decode a share sent in the binary layout (see ManifestCodec.java).
+  // Items are only decoded when they are first read.
+  openwith.decodeManifest = function (buffer) {
+    var view = new DataView(buffer)
+    var bytes = new Uint8Array(buffer)
+    if (bytes[0] !== 0x4f || bytes[1] !== 0x57 || bytes[2] !== 0x4d || bytes[3] !== 1) {
+      throw new Error('invalid manifest')
+    }
+    var pos = 4
+    // Read a length prefixed string at pos.
+    var readString = function () {
+      var length = view.getUint32(pos)
+      var value = decodeUtf8(bytes.subarray(pos + 4, pos + 4 + length))
+      pos += 4 + length
+      return value
+    }
+    var keys = []
+    var keyCount = view.getUint16(pos)
+    pos += 2
+    for (var k = 0; k < keyCount; k++) {
+      keys.push(readString())
+    }
+    // Read a tagged value at pos, objects refer to their keys by index.
+    var readValue = function () {
+      var tag = view.getUint8(pos++)
+      var count, i, value
+      switch (tag) {
+        case 0: return null
+        case 1: return false
+        case 2: return true
+        case 3:
+          value = view.getFloat64(pos)
+          pos += 8
+          return value
+        case 4: return readString()
+        case 5:
+          count = view.getUint32(pos)
+          pos += 4
+          value = {}
+          for (i = 0; i < count; i++) {
+            var key = keys[view.getUint16(pos)]
+            pos += 2
+            value[key] = readValue()
+          }
+          return value
+        case 6:
+          count = view.getUint32(pos)
+          pos += 4
+          value = []
+          for (i = 0; i < count; i++) {
+            value.push(readValue())
+          }
+          return value
+        default:
+          throw new Error('invalid manifest')
+      }
+    }
+
+    var share = readValue()
+    var itemCount = view.getUint32(pos)
+    var offsets = pos + 4
+    var items = []
+    // Decode an item the first time it is read, from its offset.
+    var defineItem = function (index) {
+      Object.defineProperty(items, index, {
+        configurable: true,
+        enumerable: true,
+        get: function () {
+          pos = view.getUint32(offsets + index * 4)
+          var item = readValue()
+          Object.defineProperty(items, index, { value: item, writable: true, enumerable: true, configurable: true })
+          return item
+        }
+      })
+    }
+    for (var i = 0; i < itemCount; i++) {
+      defineItem(i)
+    }
+    share.items = items
+    return share
+  }
+
+  // Choose how shares cross the bridge: openwith.JSON (default) or openwith.BINARY,
+  // a compact layout decoded lazily, for shares with many items (Android only).
+  // fetchSharedData resolves with the same objects either way.
+  openwith.setManifestFormat = function (format) {
+    log(DEBUG, 'setManifestFormat()')
+    if (format !== openwith.JSON && format !== openwith.BINARY) {
+      throw new Error('invalid manifest format')
+    }
+    cordova.exec(null, null, PLUGIN_NAME, 'setManifestFormat', [format])
+  }
+
+  // Without arguments, resolves with all pending shares and forgets them.
+  // With (cursor, limit), resolves with a page of at most limit items following
+  // cursor (null for the first page), with its own cursor and hasMore (Android only).
+  // Paged items stay pending until acknowledged with ackSharedData(page.cursor).
+  openwith.fetchSharedData = function (cursor, limit) {
+    var args = arguments.length === 0 ? [] : [cursor || null, limit || 0]
     return new Promise((resolve) => {
       if (!initCalled) {
         console.error('should be inited')
@@ -155,12 +269,162 @@ function initOpenwithPlugin (root) {
       }
 
       var initSuccess = function (data) {
-        resolve(data)
+        resolve(data instanceof ArrayBuffer ? openwith.decodeManifest(data) : data)
       }
       var initError = function () {
         resolve(null)
       }
-      cordova.exec(initSuccess, initError, PLUGIN_NAME, 'fetchSharedData', [])
+      cordova.exec(initSuccess, initError, PLUGIN_NAME, 'fetchSharedData', args)
+    })
+  }
+
+  // Get shares pushed as soon as they are ingested, instead of polling fetchSharedData (Android only).
+  // onShare(intent, cursor) is called for each share, which stays pending until fetched
+  // or acknowledged with ackSharedData(cursor). onItemEvent(event, item, reason) is called
+  // with 'metadataReady', 'bytesReady', 'thumbnailReady' or 'itemFailed' while the items of a share are ingested.
+  openwith.subscribe = function (onShare, onItemEvent) {
+    log(DEBUG, 'subscribe()')
+    if (typeof onShare !== 'function') {
+      throw new Error('invalid share callback')
+    }
+    if (onItemEvent && typeof onItemEvent !== 'function') {
+      throw new Error('invalid item event callback')
+    }
+    var subscribeSuccess = function (message) {
+      if (!message) return
+      if (message.event === 'share') {
+        onShare(message.share, message.cursor)
+      } else if (onItemEvent) {
+        onItemEvent(message.event, message.item, message.reason)
+      }
+    }
+    var subscribeError = function (err) {
+      log(ERROR, 'subscribe() failed: ' + err)
+    }
+    cordova.exec(subscribeSuccess, subscribeError, PLUGIN_NAME, 'subscribe', [])
+  }
+
+  // Forget the pending items up to a cursor returned by a paged fetchSharedData (Android only).
+  openwith.ackSharedData = function (cursor) {
+    log(DEBUG, 'ackSharedData()')
+    if (typeof cursor !== 'string') {
+      throw new Error('invalid cursor')
+    }
+    return new Promise((resolve, reject) => {
+      var ackError = function (err) {
+        reject(new Error(err))
+      }
+      cordova.exec(() => resolve(), ackError, PLUGIN_NAME, 'ackSharedData', [cursor])
+    })
+  }
+
+  // Copy the content of an item fetched without its bytes (Android lazy mode).
+  // Resolves with the updated item, onProgress(bytes, total) is called while copying.
+  openwith.materialize = function (itemId, onProgress) {
+    log(DEBUG, 'materialize()')
+    if (onProgress && typeof onProgress !== 'function') {
+      throw new Error('invalid progress callback')
+    }
+    return new Promise((resolve, reject) => {
+      var materializeSuccess = function (message) {
+        if (message.event === 'progress') {
+          if (onProgress) onProgress(message.bytes, message.total)
+        } else {
+          resolve(message.item)
+        }
+      }
+      var materializeError = function (err) {
+        reject(new Error(err))
+      }
+      cordova.exec(materializeSuccess, materializeError, PLUGIN_NAME, 'materialize', [itemId])
+    })
+  }
+
+  // Stream the content of an item (Android only).
+  // onChunk(arrayBuffer) is called for each chunk, the next chunk is only sent
+  // once it returned (or once the promise it returned resolved).
+  // Resolves when the whole content was read.
+  openwith.readChunks = function (itemId, chunkSize, onChunk) {
+    log(DEBUG, 'readChunks()')
+    if (typeof onChunk !== 'function') {
+      throw new Error('invalid chunk callback')
+    }
+    return new Promise((resolve, reject) => {
+      var ack = function (more) {
+        cordova.exec(null, null, PLUGIN_NAME, 'ackChunk', [itemId, more])
+      }
+      var chunkSuccess = function (chunk) {
+        if (!chunk || chunk.byteLength === 0) {
+          resolve()
+          return
+        }
+        Promise.resolve()
+          .then(() => onChunk(chunk))
+          .then(() => ack(true), (err) => {
+            ack(false)
+            reject(err)
+          })
+      }
+      var chunkError = function (err) {
+        reject(new Error(err))
+      }
+      cordova.exec(chunkSuccess, chunkError, PLUGIN_NAME, 'readChunks', [itemId, chunkSize])
+    })
+  }
+
+  // Copy an item of the share being ingested before the others (Android only).
+  // Resolves with false when the item is not waiting for, nor running, its copy.
+  openwith.prioritize = function (itemId) {
+    log(DEBUG, 'prioritize()')
+    return scheduleItem('prioritize', itemId)
+  }
+
+  // Drop an item of the share being ingested, stopping its copy if it started (Android only).
+  // The item is then reported as 'itemFailed' with the reason 'cancelled'.
+  // Resolves with false when the item is not waiting for, nor running, its copy.
+  openwith.cancel = function (itemId) {
+    log(DEBUG, 'cancel()')
+    return scheduleItem('cancel', itemId)
+  }
+
+  var scheduleItem = function (action, itemId) {
+    if (typeof itemId !== 'string' || !itemId) {
+      throw new Error('invalid item id')
+    }
+    return new Promise((resolve, reject) => {
+      var scheduleSuccess = function (result) {
+        resolve(!!(result && result.found))
+      }
+      var scheduleError = function (err) {
+        reject(new Error(err))
+      }
+      cordova.exec(scheduleSuccess, scheduleError, PLUGIN_NAME, action, [itemId])
+    })
+  }
+
+  // Retrieve the ingestion timings (Android only, needs the OPEN_WITH_METRICS meta-data).
+  openwith.getMetrics = function (withTraces, reset) {
+    log(DEBUG, 'getMetrics()')
+    return new Promise((resolve, reject) => {
+      var metricsError = function (err) {
+        reject(new Error(err))
+      }
+      cordova.exec(resolve, metricsError, PLUGIN_NAME, 'getMetrics', [!!withTraces, !!reset])
+    })
+  }
+
+  // Delete the cached copies no pending share refers to (Android only).
+  // Resolves with the number of bytes freed.
+  openwith.purgeCache = function () {
+    log(DEBUG, 'purgeCache()')
+    return new Promise((resolve, reject) => {
+      var purgeSuccess = function (result) {
+        resolve(result ? result.freedBytes : 0)
+      }
+      var purgeError = function (err) {
+        reject(new Error(err))
+      }
+      cordova.exec(purgeSuccess, purgeError, PLUGIN_NAME, 'purgeCache', [])
     })
   }
 
@@ -92,6 +92,243 @@ describe('openwith', () => {
     })
   })
 
+  describe('.fetchSharedData()', () => {
+    it('is a function', () => expect(openwith.fetchSharedData).to.be.a('function'))
+    it('fetches everything without arguments', () => {
+      openwith.init()
+      openwith.fetchSharedData()
+      expect(cordovaExecCallTo('fetchSharedData').args).to.eql([])
+    })
+    it('passes the cursor and limit of a page', () => {
+      openwith.init()
+      openwith.fetchSharedData(null, 10)
+      expect(cordovaExecCallTo('fetchSharedData').args).to.eql([ null, 10 ])
+      var page = { items: [], cursor: '1:0', hasMore: false }
+      var promise = openwith.fetchSharedData('1:0', 10)
+      expect(cordovaExecCallTo('fetchSharedData').args).to.eql([ '1:0', 10 ])
+      cordovaExecCallTo('fetchSharedData').successCallback(page)
+      return promise.then((data) => expect(data).to.equal(page))
+    })
+  })
+
+  describe('.decodeManifest()', () => {
+    // encode the way ManifestCodec.java does
+    var encode = function (share, items) {
+      var keys = []
+      var collect = (value) => {
+        if (value && typeof value === 'object') {
+          Object.keys(value).forEach((key) => {
+            if (!Array.isArray(value) && keys.indexOf(key) < 0) keys.push(key)
+            collect(value[key])
+          })
+        }
+      }
+      collect(share)
+      collect(items)
+      var out = [0x4f, 0x57, 0x4d, 1]
+      var u16 = (n) => out.push((n >> 8) & 0xff, n & 0xff)
+      var u32 = (n) => out.push((n >>> 24) & 0xff, (n >> 16) & 0xff, (n >> 8) & 0xff, n & 0xff)
+      var str = (s) => {
+        var bytes = Buffer.from(s, 'utf8')
+        u32(bytes.length)
+        bytes.forEach((b) => out.push(b))
+      }
+      var value = (v) => {
+        if (v === null) out.push(0)
+        else if (v === false) out.push(1)
+        else if (v === true) out.push(2)
+        else if (typeof v === 'number') {
+          out.push(3)
+          var b = Buffer.alloc(8)
+          b.writeDoubleBE(v)
+          b.forEach((x) => out.push(x))
+        } else if (typeof v === 'string') {
+          out.push(4)
+          str(v)
+        } else if (Array.isArray(v)) {
+          out.push(6)
+          u32(v.length)
+          v.forEach(value)
+        } else {
+          out.push(5)
+          u32(Object.keys(v).length)
+          Object.keys(v).forEach((key) => {
+            u16(keys.indexOf(key))
+            value(v[key])
+          })
+        }
+      }
+      u16(keys.length)
+      keys.forEach(str)
+      value(share)
+      u32(items.length)
+      var offsetsAt = out.length
+      items.forEach(() => u32(0))
+      items.forEach((item, i) => {
+        var offset = out.length
+        out[offsetsAt + i * 4] = (offset >>> 24) & 0xff
+        out[offsetsAt + i * 4 + 1] = (offset >> 16) & 0xff
+        out[offsetsAt + i * 4 + 2] = (offset >> 8) & 0xff
+        out[offsetsAt + i * 4 + 3] = offset & 0xff
+        value(item)
+      })
+      return new Uint8Array(out).buffer
+    }
+
+    it('is a function', () => expect(openwith.decodeManifest).to.be.a('function'))
+    it('rejects other buffers', () => {
+      expect(openwith.decodeManifest).withArgs(new ArrayBuffer(8)).to.throwError()
+    })
+    it('decodes the share and its items', () => {
+      var items = [
+        { id: 'a', size: 12, materialized: true, digests: { 'SHA-256': '00' } },
+        { id: 'b', name: 'été.jpg', path: '', materialized: false, tags: [1, null] }
+      ]
+      var share = openwith.decodeManifest(encode({ action: 'SEND', exit: false, receivedCounts: 2 }, items))
+      expect(share.action).to.equal('SEND')
+      expect(share.exit).to.equal(false)
+      expect(share.items.length).to.equal(2)
+      expect(share.items[1]).to.eql(items[1])
+      expect(share.items[0]).to.eql(items[0])
+      expect(JSON.parse(JSON.stringify(share.items))).to.eql(items)
+    })
+    it('is used by fetchSharedData for binary results', () => {
+      openwith.init()
+      var promise = openwith.fetchSharedData()
+      cordovaExecCallTo('fetchSharedData').successCallback(encode({ action: 'SEND' }, [{ id: 'a' }]))
+      return promise.then((data) => expect(data.items[0].id).to.equal('a'))
+    })
+  })
+
+  describe('.setManifestFormat()', () => {
+    it('is a function', () => expect(openwith.setManifestFormat).to.be.a('function'))
+    it('accepts only known formats', () => {
+      expect(openwith.setManifestFormat).withArgs('xml').to.throwError()
+      openwith.setManifestFormat(openwith.BINARY)
+      expect(cordovaExecCallTo('setManifestFormat').args).to.eql([ 'binary' ])
+    })
+  })
+
+  describe('.ackSharedData()', () => {
+    it('is a function', () => expect(openwith.ackSharedData).to.be.a('function'))
+    it('rejects bad cursors', () => {
+      expect(openwith.ackSharedData).withArgs(1).to.throwError()
+    })
+    it('passes the cursor to the native side', () => {
+      var promise = openwith.ackSharedData('1:2')
+      expect(cordovaExecCallTo('ackSharedData').args).to.eql([ '1:2' ])
+      cordovaExecCallTo('ackSharedData').successCallback()
+      return promise
+    })
+  })
+
+  describe('.subscribe()', () => {
+    it('is a function', () => expect(openwith.subscribe).to.be.a('function'))
+    it('requires a share callback', () => {
+      expect(openwith.subscribe).withArgs().to.throwError()
+      expect(openwith.subscribe).withArgs(() => {}, 1).to.throwError()
+    })
+    it('dispatches shares and item events', () => {
+      var shares = []
+      var events = []
+      openwith.subscribe((share, cursor) => shares.push([share, cursor]), (event, item) => events.push([event, item.id]))
+      expect(cordovaExecCallTo('subscribe').args).to.eql([])
+      var push = cordovaExecCallTo('subscribe').successCallback
+      push({ event: 'metadataReady', item: { id: 'a' } })
+      push({ event: 'bytesReady', item: { id: 'a' } })
+      push({ event: 'thumbnailReady', item: { id: 'a', thumbnailPath: '/t.jpg' } })
+      push({ event: 'share', share: { items: [] }, cursor: '1:0' })
+      expect(events).to.eql([['metadataReady', 'a'], ['bytesReady', 'a'], ['thumbnailReady', 'a']])
+      expect(shares).to.eql([[{ items: [] }, '1:0']])
+    })
+  })
+
+  describe('.materialize()', () => {
+    it('is a function', () => expect(openwith.materialize).to.be.a('function'))
+    it('rejects bad progress callbacks', () => {
+      expect(openwith.materialize).withArgs('id', 1).to.throwError()
+    })
+    it('calls the native side with the item id', () => {
+      openwith.materialize('id')
+      expect(cordovaExecCallTo('materialize').args).to.eql([ 'id' ])
+    })
+    it('reports progress then resolves with the item', () => {
+      var progress = []
+      var promise = openwith.materialize('id', (bytes, total) => progress.push([bytes, total]))
+      var success = cordovaExecCallTo('materialize').successCallback
+      success({ event: 'progress', bytes: 1, total: 2 })
+      success({ event: 'done', item: { id: 'id' } })
+      return promise.then((item) => {
+        expect(progress).to.eql([[1, 2]])
+        expect(item).to.eql({ id: 'id' })
+      })
+    })
+  })
+
+  describe('.readChunks()', () => {
+    it('is a function', () => expect(openwith.readChunks).to.be.a('function'))
+    it('requires a chunk callback', () => {
+      expect(openwith.readChunks).withArgs('id', 1024).to.throwError()
+    })
+    it('acknowledges each chunk and resolves on the empty chunk', () => {
+      var chunks = []
+      var promise = openwith.readChunks('id', 1024, (chunk) => chunks.push(chunk))
+      expect(cordovaExecCallTo('readChunks').args).to.eql([ 'id', 1024 ])
+      var success = cordovaExecCallTo('readChunks').successCallback
+      success(new ArrayBuffer(4))
+      return Promise.resolve().then(() => Promise.resolve()).then(() => {
+        expect(cordovaExecCallTo('ackChunk').args).to.eql([ 'id', true ])
+        success(new ArrayBuffer(0))
+        return promise
+      }).then(() => expect(chunks.length).to.equal(1))
+    })
+  })
+
+  describe('.prioritize()', () => {
+    it('is a function', () => expect(openwith.prioritize).to.be.a('function'))
+    it('rejects bad item ids', () => {
+      expect(openwith.prioritize).withArgs().to.throwError()
+      expect(openwith.prioritize).withArgs('').to.throwError()
+    })
+    it('resolves with whether the item was found', () => {
+      var promise = openwith.prioritize('id')
+      expect(cordovaExecCallTo('prioritize').args).to.eql([ 'id' ])
+      cordovaExecCallTo('prioritize').successCallback({ found: true })
+      return promise.then((found) => expect(found).to.equal(true))
+    })
+  })
+
+  describe('.cancel()', () => {
+    it('is a function', () => expect(openwith.cancel).to.be.a('function'))
+    it('rejects bad item ids', () => {
+      expect(openwith.cancel).withArgs(1).to.throwError()
+    })
+    it('resolves with whether the item was found', () => {
+      var promise = openwith.cancel('id')
+      expect(cordovaExecCallTo('cancel').args).to.eql([ 'id' ])
+      cordovaExecCallTo('cancel').successCallback({ found: false })
+      return promise.then((found) => expect(found).to.equal(false))
+    })
+  })
+
+  describe('.getMetrics()', () => {
+    it('is a function', () => expect(openwith.getMetrics).to.be.a('function'))
+    it('passes the options to the native side', () => {
+      openwith.getMetrics(true)
+      expect(cordovaExecCallTo('getMetrics').args).to.eql([ true, false ])
+    })
+  })
+
+  describe('.purgeCache()', () => {
+    it('is a function', () => expect(openwith.purgeCache).to.be.a('function'))
+    it('resolves with the number of bytes freed', () => {
+      var promise = openwith.purgeCache()
+      expect(cordovaExecCallTo('purgeCache').args).to.eql([])
+      cordovaExecCallTo('purgeCache').successCallback({ freedBytes: 42 })
+      return promise.then((freed) => expect(freed).to.equal(42))
+    })
+  })
+
   describe('.numHandlers', () => {
     it('is a function', () => expect(openwith.numHandlers).to.be.a('function'))
     it('returns the number of handlers', () => {